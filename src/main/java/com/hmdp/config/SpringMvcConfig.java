@@ -1,6 +1,7 @@
 package com.hmdp.config;
 
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.OpsTokenInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -16,6 +17,8 @@ public class SpringMvcConfig implements WebMvcConfigurer {
     private LoginInterceptor loginInterceptor;
     @Autowired
     private RefreshTokenInterceptor refreshTokenInterceptor;
+    @Autowired
+    private OpsTokenInterceptor opsTokenInterceptor;
 
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
@@ -27,8 +30,11 @@ public class SpringMvcConfig implements WebMvcConfigurer {
                         "/shop/**",
                         "/shop-type/**",
                         "/upload/**",
-                        "/voucher/**"
+                        "/voucher/**",
+                        "/cache/**"
                 ).order(1);
+        // 运维接口不走用户登录，单独校验运维token
+        registry.addInterceptor(opsTokenInterceptor).addPathPatterns("/cache/**").order(1);
         registry.addInterceptor(refreshTokenInterceptor).order(0);
     }
 }
@@ -0,0 +1,40 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheMetrics;
+import com.hmdp.utils.HotKeyDetector;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * 缓存运行状态
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    /**
+     * 当前的热点key
+     * @return key和最近一个窗口内估计的访问次数，按访问次数从高到低
+     */
+    @GetMapping("/hot-keys")
+    public Result hotKeys() {
+        return Result.ok(hotKeyDetector.hotKeys());
+    }
+
+    /**
+     * 缓存指标，Prometheus文本格式，按key前缀统计命中、空值命中、未命中、锁等待和加载耗时
+     */
+    @GetMapping(value = "/metrics", produces = "text/plain; version=0.0.4; charset=utf-8")
+    public String metrics() {
+        return cacheMetrics.scrape();
+    }
+}
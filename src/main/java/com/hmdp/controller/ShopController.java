@@ -1,12 +1,10 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
-import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.BloomFilterRegistry;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -25,6 +23,8 @@ public class ShopController {
 
     @Resource
     public IShopService shopService;
+    @Resource
+    private BloomFilterRegistry bloomFilters;
 
     /**
      * 根据id查询商铺信息
@@ -44,9 +44,10 @@ public class ShopController {
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
         // 写入数据库
-        shopService.save(shop);
+        Result result = shopService.saveShop(shop);
+        bloomFilters.add(BloomFilterRegistry.SHOP, shop.getId());
         // 返回店铺id
-        return Result.ok(shop.getId());
+        return result;
     }
 
     /**
@@ -64,19 +65,18 @@ public class ShopController {
      * 根据商铺类型分页查询商铺信息
      * @param typeId 商铺类型
      * @param current 页码
+     * @param x 经度，和纬度一起传入时按距离由近到远查询附近的商铺，页码越大越慢，翻页多的场景用/of/type/scroll
+     * @param y 纬度
      * @return 商铺列表
      */
     @GetMapping("/of/type")
     public Result queryShopByType(
             @RequestParam("typeId") Integer typeId,
-            @RequestParam(value = "current", defaultValue = "1") Integer current
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "x", required = false) Double x,
+            @RequestParam(value = "y", required = false) Double y
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .eq("type_id", typeId)
-                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        return shopService.queryShopByType(typeId, current, x, y);
     }
 
     /**
@@ -90,11 +90,42 @@ public class ShopController {
             @RequestParam(value = "name", required = false) String name,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .like(StrUtil.isNotBlank(name), "name", name)
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        return shopService.queryShopByName(name, current);
+    }
+
+    /**
+     * 根据商铺类型滚动查询商铺信息，不受页数影响
+     * @param typeId 商铺类型
+     * @param lastId 上一页最后一个商铺的id，第一页不传
+     * @param x 经度，和纬度一起传入时按距离由近到远滚动查询附近的商铺
+     * @param y 纬度
+     * @param lastDistance 按距离查询时上一页最后一个商铺的距离，第一页不传
+     * @return 商铺列表和下一页的游标
+     */
+    @GetMapping("/of/type/scroll")
+    public Result scrollShopByType(
+            @RequestParam("typeId") Integer typeId,
+            @RequestParam(value = "lastId", defaultValue = "0") Long lastId,
+            @RequestParam(value = "x", required = false) Double x,
+            @RequestParam(value = "y", required = false) Double y,
+            @RequestParam(value = "lastDistance", defaultValue = "-1") Double lastDistance
+    ) {
+        return shopService.scrollShopByType(typeId, lastId, x, y, lastDistance);
+    }
+
+    /**
+     * 根据商铺名称关键字滚动查询商铺信息，按相关度排序
+     * @param name 商铺名称关键字
+     * @param minTime 上一页最后一个商铺的排序键，第一页不传
+     * @param lastId 上一页最后一个商铺的id，第一页不传
+     * @return 商铺列表和下一页的游标
+     */
+    @GetMapping("/of/name/scroll")
+    public Result scrollShopByName(
+            @RequestParam(value = "name", required = false) String name,
+            @RequestParam(value = "minTime", defaultValue = "-1") Long minTime,
+            @RequestParam(value = "lastId", defaultValue = "0") Long lastId
+    ) {
+        return shopService.scrollShopByName(name, minTime, lastId);
     }
 }
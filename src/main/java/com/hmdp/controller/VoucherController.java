@@ -30,7 +30,7 @@ public class VoucherController {
      */
     @PostMapping
     public Result addVoucher(@RequestBody Voucher voucher) {
-        voucherService.save(voucher);
+        voucherService.addVoucher(voucher);
         return Result.ok(voucher.getId());
     }
 
@@ -45,6 +45,22 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 秒杀券补货
+     * @param id 优惠券id
+     * @param amount 增加的库存数量
+     */
+    @PutMapping("seckill/{id}/stock")
+    public Result restockSeckillVoucher(@PathVariable("id") Long id, @RequestParam("amount") Integer amount) {
+        if (amount == null || amount <= 0) {
+            return Result.fail("补货数量必须大于0");
+        }
+        if (!voucherService.restockSeckillVoucher(id, amount)) {
+            return Result.fail("秒杀券不存在");
+        }
+        return Result.ok();
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
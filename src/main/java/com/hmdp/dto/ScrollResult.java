@@ -9,4 +9,8 @@ public class ScrollResult {
     private List<?> list;
     private Long minTime;
     private Integer offset;
+    //按(排序键, id)翻页时最后一条记录的id，和minTime一起作为下一页的游标
+    private Long lastId;
+    //按(距离, id)翻页时最后一条记录的距离，米
+    private Double lastDistance;
 }
@@ -16,5 +16,15 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    Result saveShop(Shop shop);
+
     Result updateShop(Shop shop);
+
+    Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+
+    Result queryShopByName(String name, Integer current);
+
+    Result scrollShopByType(Integer typeId, Long lastId, Double x, Double y, Double lastDistance);
+
+    Result scrollShopByName(String name, Long lastScore, Long lastId);
 }
@@ -1,11 +1,24 @@
 package com.hmdp.service.impl;
 
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.Result;
 import com.hmdp.entity.Blog;
+import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
+import com.hmdp.service.IUserService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.BloomFilterRegistry;
+import com.hmdp.utils.HmdpCached;
+import com.hmdp.utils.HmdpEvict;
+import org.springframework.aop.framework.AopContext;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
+
 /**
  * <p>
  *  服务实现类
@@ -16,5 +29,64 @@ import org.springframework.stereotype.Service;
  */
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
+    @Resource
+    private BloomFilterRegistry bloomFilters;
+    @Resource
+    private IUserService userService;
+
+    @PostConstruct
+    public void init() {
+        bloomFilters.register(BloomFilterRegistry.BLOG, this::count, (lastId, size) ->
+                listObjs(new QueryWrapper<Blog>().select("id").gt("id", lastId).orderByAsc("id").last("limit " + size),
+                        id -> Long.valueOf(id.toString())));
+    }
+
+    @Override
+    @HmdpEvict(keyPrefix = CACHE_BLOG_KEY, key = "#blog.id")
+    public Result saveBlog(Blog blog) {
+        if (!save(blog)) {
+            return Result.fail("发布博文失败");
+        }
+        bloomFilters.add(BloomFilterRegistry.BLOG, blog.getId());
+        return Result.ok(blog.getId());
+    }
+
+    @Override
+    @HmdpEvict(keyPrefix = CACHE_BLOG_KEY, key = "#id")
+    public Result likeBlog(Long id) {
+        // 修改点赞数量
+        update().setSql("liked = liked + 1").eq("id", id).update();
+        return Result.ok();
+    }
+
+    @Override
+    public Result queryBlogById(Long id) {
+        // 布隆过滤器判断不存在的id直接返回，不访问缓存和数据库
+        if (!bloomFilters.mightContain(BloomFilterRegistry.BLOG, id)) {
+            return Result.fail("博文不存在");
+        }
+        // 通过代理调用才能走缓存
+        IBlogService proxy = (IBlogService) AopContext.currentProxy();
+        Blog blog = proxy.queryBlog(id);
+        if (blog == null) {
+            return Result.fail("博文不存在");
+        }
+        return Result.ok(blog);
+    }
 
+    @Override
+    @HmdpCached(keyPrefix = CACHE_BLOG_KEY, key = "#id", ttl = 30)
+    public Blog queryBlog(Long id) {
+        Blog blog = getById(id);
+        if (blog == null) {
+            return null;
+        }
+        // 查询博文作者
+        User user = userService.getById(blog.getUserId());
+        if (user != null) {
+            blog.setName(user.getNickName());
+            blog.setIcon(user.getIcon());
+        }
+        return blog;
+    }
 }
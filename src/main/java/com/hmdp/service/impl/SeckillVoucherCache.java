@@ -0,0 +1,81 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.SeckillStockManager;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_TTL;
+
+/**
+ * 秒杀券的开始、结束时间创建后不会再变，本地缓存一份，Redis里再缓存一份，
+ * 秒杀时不用每次都按主键查数据库。
+ * 定时任务在秒杀开始前warm-up-lead秒把即将开始的秒杀券预热到每个节点的本地缓存和Redis。
+ */
+@Slf4j
+@Component
+public class SeckillVoucherCache {
+    @Autowired
+    private ISeckillVoucherService seckillVoucherService;
+    @Autowired
+    private CacheClient cacheClient;
+    @Autowired
+    private SeckillStockManager seckillStockManager;
+    @Value("${hmdp.seckill.warm-up-lead:600}")
+    private long warmUpLeadSeconds;
+
+    private final Map<Long, SeckillVoucher> localCache = new ConcurrentHashMap<>();
+
+    public SeckillVoucher get(Long voucherId) {
+        SeckillVoucher voucher = localCache.get(voucherId);
+        if (voucher != null) {
+            return voucher;
+        }
+        voucher = cacheClient.queryWithPassThrough(SECKILL_VOUCHER_KEY, voucherId, SeckillVoucher.class,
+                seckillVoucherService::getById, SECKILL_VOUCHER_TTL, TimeUnit.HOURS);
+        if (voucher != null) {
+            localCache.put(voucherId, voucher);
+        }
+        return voucher;
+    }
+
+    /**
+     * 新增秒杀券时直接写入缓存
+     */
+    public void put(SeckillVoucher voucher) {
+        cacheClient.set(SECKILL_VOUCHER_KEY + voucher.getVoucherId(), voucher, SECKILL_VOUCHER_TTL, TimeUnit.HOURS);
+        localCache.put(voucher.getVoucherId(), voucher);
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.warm-up-interval:60000}")
+    public void warmUp() {
+        LocalDateTime now = LocalDateTime.now();
+        //已经结束的秒杀券不会再被访问，从本地缓存里清掉
+        localCache.values().removeIf(v -> v.getEndTime().isBefore(now));
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .le("begin_time", now.plusSeconds(warmUpLeadSeconds))
+                .ge("end_time", now)
+                .list();
+        for (SeckillVoucher voucher : vouchers) {
+            if (localCache.containsKey(voucher.getVoucherId())) {
+                continue;
+            }
+            put(voucher);
+            //库存已经加载过的不会被覆盖
+            seckillStockManager.load(voucher.getVoucherId(), voucher.getStock());
+            log.debug("预热秒杀券{}，开始时间{}", voucher.getVoucherId(), voucher.getBeginTime());
+        }
+    }
+}
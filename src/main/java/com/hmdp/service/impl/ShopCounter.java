@@ -0,0 +1,294 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.Voucher;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.IVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SHOP_COUNTER_DIRTY_KEY;
+import static com.hmdp.utils.RedisConstants.SHOP_COUNTER_KEY;
+import static com.hmdp.utils.RedisConstants.SHOP_COUNTER_PROCESSING_KEY;
+import static com.hmdp.utils.RedisConstants.SHOP_COUNTER_TOTAL_TTL;
+
+/**
+ * 店铺销量和评论数的计数器。
+ * 每次下单不直接update店铺表，而是在Redis的hash里累加增量，并把店铺id记到待写回集合里。
+ * 定时任务用SMOVE把店铺从待写回集合移到写回中集合，再用脚本把增量认领到写回中的hash里，
+ * 用一条update批量写回数据库，事务提交后才删除写回中的hash并移出写回中集合。
+ * 节点在写回途中挂掉时增量还留在Redis里，认领超时后由其他节点重新写回，增量不会丢，极端情况下会重复写回一次。
+ * 写回时顺便把数据库里的值加上新增量记为实时总数，店铺详情直接用实时总数替换缓存里的销量和评论数，
+ * 写回之后不需要删除店铺缓存。还没有实时总数的店铺在缓存的值上叠加增量。
+ */
+@Slf4j
+@Component
+public class ShopCounter {
+    public static final String SOLD = "sold";
+    //店铺评价数，探店博文和博文下的评论都不算店铺评价，不往这里累加
+    public static final String COMMENTS = "comments";
+    private static final DefaultRedisScript<Long> INCR_SCRIPT;
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    private static final DefaultRedisScript<List> OVERLAY_SCRIPT;
+    static {
+        INCR_SCRIPT = script("script/shop_counter_incr.lua", Long.class);
+        CLAIM_SCRIPT = script("script/shop_counter_claim.lua", List.class);
+        RELEASE_SCRIPT = script("script/shop_counter_release.lua", Long.class);
+        OVERLAY_SCRIPT = script("script/shop_counter_overlay.lua", List.class);
+    }
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private ShopMapper shopMapper;
+    @Autowired
+    private IVoucherService voucherService;
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+    @Value("${hmdp.shop.counter-flush-batch:500}")
+    private int flushBatch;
+    @Value("${hmdp.shop.counter-claim-timeout:60000}")
+    private long claimTimeoutMillis;
+    @Value("${hmdp.shop.counter-overlay-ttl:1000}")
+    private long overlayTtlMillis;
+
+    //优惠券所属的店铺不会变，本地缓存一份
+    private final Map<Long, Long> voucherShops = new ConcurrentHashMap<>();
+    //店铺id -> {是否实时总数, 销量, 评论数}，热点店铺的详情请求不用每次都查Redis
+    private Cache<Long, long[]> overlays;
+
+    @PostConstruct
+    public void init() {
+        overlays = Caffeine.newBuilder()
+                .maximumSize(10000)
+                .expireAfterWrite(overlayTtlMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * 给店铺的计数加上delta，在事务里调用时等事务提交之后才累加
+     * @param field SOLD或者COMMENTS
+     */
+    public void increment(Long shopId, String field, long delta) {
+        if (shopId == null || delta == 0) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    incrementNow(shopId, field, delta);
+                }
+            });
+            return;
+        }
+        incrementNow(shopId, field, delta);
+    }
+
+    /**
+     * 优惠券卖出count张，算到优惠券所属店铺的销量上
+     */
+    public void incrementSold(Long voucherId, long count) {
+        Long shopId = voucherShops.get(voucherId);
+        if (shopId == null) {
+            Voucher voucher = voucherService.getById(voucherId);
+            if (voucher == null || voucher.getShopId() == null) {
+                return;
+            }
+            shopId = voucher.getShopId();
+            voucherShops.put(voucherId, shopId);
+        }
+        increment(shopId, SOLD, count);
+    }
+
+    private void incrementNow(Long shopId, String field, long delta) {
+        try {
+            stringRedisTemplate.execute(INCR_SCRIPT, Arrays.asList(pendingKey(shopId), totalKey(shopId)),
+                    field, String.valueOf(delta));
+            //先累加再登记，登记之后才可能被写回，不会出现登记了但增量还没写进去就被认领的情况
+            stringRedisTemplate.opsForSet().add(SHOP_COUNTER_DIRTY_KEY, shopId.toString());
+        } catch (Exception e) {
+            //计数不影响下单本身
+            log.error("店铺{}的{}计数失败", shopId, field, e);
+        }
+    }
+
+    /**
+     * 返回叠加了实时计数的店铺副本，缓存里的店铺对象是共享的，不能直接修改
+     */
+    public Shop overlay(Shop shop) {
+        if (shop == null) {
+            return null;
+        }
+        Long id = shop.getId();
+        long[] counts = overlays.get(id, k -> {
+            List<?> values = stringRedisTemplate.execute(OVERLAY_SCRIPT,
+                    Arrays.asList(pendingKey(id), flushingKey(id), totalKey(id)));
+            return new long[]{parse(values.get(0)), parse(values.get(1)), parse(values.get(2))};
+        });
+        boolean total = counts[0] == 1;
+        if (!total && counts[1] == 0 && counts[2] == 0) {
+            return shop;
+        }
+        Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+        if (total) {
+            copy.setSold((int) counts[1]);
+            copy.setComments((int) counts[2]);
+        } else {
+            copy.setSold((int) ((shop.getSold() == null ? 0 : shop.getSold()) + counts[1]));
+            copy.setComments((int) ((shop.getComments() == null ? 0 : shop.getComments()) + counts[2]));
+        }
+        return copy;
+    }
+
+    /**
+     * 每个节点都会执行，SMOVE和认领脚本保证同一个店铺同时只会被一个节点写回
+     */
+    @Scheduled(fixedDelayString = "${hmdp.shop.counter-flush-interval:5000}")
+    public void flush() {
+        String owner = UUID.randomUUID().toString();
+        int moved;
+        do {
+            moved = moveDirty();
+            //写回中集合里除了刚移过来的，还有其他节点没写完的，认领超时的会被这里接手
+            Set<String> candidates = stringRedisTemplate.opsForSet().distinctRandomMembers(SHOP_COUNTER_PROCESSING_KEY, flushBatch);
+            if (candidates == null || candidates.isEmpty()) {
+                return;
+            }
+            List<Shop> claimed = claim(candidates, owner);
+            if (claimed.isEmpty()) {
+                return;
+            }
+            if (!writeBack(claimed, owner)) {
+                return;
+            }
+        } while (moved == flushBatch);
+    }
+
+    private int moveDirty() {
+        Set<String> dirty = stringRedisTemplate.opsForSet().distinctRandomMembers(SHOP_COUNTER_DIRTY_KEY, flushBatch);
+        if (dirty == null) {
+            return 0;
+        }
+        int moved = 0;
+        for (String shopId : dirty) {
+            if (Boolean.TRUE.equals(stringRedisTemplate.opsForSet().move(SHOP_COUNTER_DIRTY_KEY, shopId, SHOP_COUNTER_PROCESSING_KEY))) {
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    private List<Shop> claim(Set<String> shopIds, String owner) {
+        List<Shop> claimed = new ArrayList<>(shopIds.size());
+        String now = String.valueOf(System.currentTimeMillis());
+        for (String shopId : shopIds) {
+            Long id = Long.valueOf(shopId);
+            List<?> delta = stringRedisTemplate.execute(CLAIM_SCRIPT, Arrays.asList(pendingKey(id), flushingKey(id)),
+                    owner, now, String.valueOf(claimTimeoutMillis));
+            if (delta == null || delta.isEmpty()) {
+                //其他节点正在写回
+                continue;
+            }
+            Shop shop = new Shop();
+            shop.setId(id);
+            shop.setSold((int) parse(delta.get(0)));
+            shop.setComments((int) parse(delta.get(1)));
+            claimed.add(shop);
+        }
+        return claimed;
+    }
+
+    /**
+     * 一条update写回所有增量，在同一个事务里读出写回后的值，提交之后再释放认领
+     * @return 是否写回成功
+     */
+    private boolean writeBack(List<Shop> claimed, String owner) {
+        List<Shop> changed = claimed.stream()
+                .filter(s -> s.getSold() != 0 || s.getComments() != 0)
+                .collect(Collectors.toList());
+        Map<Long, Shop> current;
+        try {
+            current = changed.isEmpty() ? Collections.emptyMap() : transactionTemplate.execute(status -> {
+                shopMapper.increaseCounters(changed);
+                //update已经锁住了这些行，读到的就是写回之后的值
+                return shopMapper.selectList(new QueryWrapper<Shop>().select("id", "sold", "comments")
+                                .in("id", changed.stream().map(Shop::getId).collect(Collectors.toList())))
+                        .stream().collect(Collectors.toMap(Shop::getId, Function.identity()));
+            });
+        } catch (Exception e) {
+            //增量还在写回中的hash里，让认领立即超时，下一轮重新写回
+            log.error("店铺计数写回数据库失败，{}个店铺下一轮重试", changed.size(), e);
+            for (Shop shop : claimed) {
+                stringRedisTemplate.opsForHash().put(flushingKey(shop.getId()), "claimedAt", "0");
+            }
+            return false;
+        }
+        String ttl = String.valueOf(TimeUnit.HOURS.toSeconds(SHOP_COUNTER_TOTAL_TTL));
+        for (Shop shop : claimed) {
+            Long id = shop.getId();
+            Shop db = current.get(id);
+            String sold = db == null || db.getSold() == null ? "0" : db.getSold().toString();
+            String comments = db == null || db.getComments() == null ? "-1" : db.getComments().toString();
+            Long released = stringRedisTemplate.execute(RELEASE_SCRIPT,
+                    Arrays.asList(pendingKey(id), flushingKey(id), totalKey(id)), owner, sold, comments, ttl);
+            if (released != null && released == 1) {
+                stringRedisTemplate.opsForSet().remove(SHOP_COUNTER_PROCESSING_KEY, id.toString());
+            } else {
+                log.warn("店铺{}的计数认领已经超时被其他节点接手，可能重复写回", id);
+            }
+        }
+        return true;
+    }
+
+    //同一个店铺的几个key用hash tag放在同一个slot，脚本里可以同时操作
+    private static String pendingKey(Long shopId) {
+        return SHOP_COUNTER_KEY + "{" + shopId + "}";
+    }
+
+    private static String flushingKey(Long shopId) {
+        return SHOP_COUNTER_KEY + "{" + shopId + "}:flushing";
+    }
+
+    private static String totalKey(Long shopId) {
+        return SHOP_COUNTER_KEY + "{" + shopId + "}:total";
+    }
+
+    private static long parse(Object value) {
+        return value == null ? 0 : Long.parseLong(value.toString());
+    }
+
+    private static <T> DefaultRedisScript<T> script(String location, Class<T> resultType) {
+        DefaultRedisScript<T> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource(location));
+        script.setResultType(resultType);
+        return script;
+    }
+}
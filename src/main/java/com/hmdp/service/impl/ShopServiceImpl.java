@@ -1,24 +1,63 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.bean.copier.CopyOptions;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ScrollResult;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.BlockingRedisLock;
+import com.hmdp.utils.BloomFilterRegistry;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.RedisLockNotifier;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopNameIndex;
+import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.geo.Circle;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.DefaultTypedTuple;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -30,27 +69,88 @@ import static com.hmdp.utils.RedisConstants.*;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
+    private static final DefaultRedisScript<List> GEO_SCROLL_SCRIPT;
+    static {
+        GEO_SCROLL_SCRIPT = new DefaultRedisScript<>();
+        GEO_SCROLL_SCRIPT.setLocation(new ClassPathResource("script/geo_scroll.lua"));
+        GEO_SCROLL_SCRIPT.setResultType(List.class);
+    }
+
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
     @Autowired
     private CacheClient cacheClient;
+    @Autowired
+    private BloomFilterRegistry bloomFilters;
+    @Autowired
+    private ShopGeoIndex shopGeoIndex;
+    @Autowired
+    private ShopNameIndex shopNameIndex;
+    @Autowired
+    private ShopCounter shopCounter;
+    @Autowired
+    private RedisLockNotifier lockNotifier;
+    //mutex：互斥锁重建  logical-expire：逻辑过期，热点店铺后台提前刷新
+    @Value("${hmdp.cache.shop.mode:mutex}")
+    private String shopCacheMode;
+    @Value("${hmdp.cache.shop.local-size:10000}")
+    private long shopLocalSize;
+    @Value("${hmdp.cache.shop.local-ttl:60}")
+    private long shopLocalTtl;
+    //附近商铺的搜索半径，米
+    @Value("${hmdp.shop.nearby-radius:5000}")
+    private double nearbyRadius;
+    //正在重建id列表的类型，本节点同一个类型只有一个线程去重建
+    private final Map<Integer, CompletableFuture<String>> typeIdsLoading = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        //店铺详情访问量大、修改少，开启本地一级缓存
+        cacheClient.enableLocalCache(CACHE_SHOP_KEY, shopLocalSize, shopLocalTtl, TimeUnit.SECONDS);
+        bloomFilters.register(BloomFilterRegistry.SHOP, this::count, (lastId, size) ->
+                listObjs(new QueryWrapper<Shop>().select("id").gt("id", lastId).orderByAsc("id").last("limit " + size),
+                        id -> Long.valueOf(id.toString())));
+        shopGeoIndex.load((lastId, size) -> query().select("id", "type_id", "x", "y")
+                .gt("id", lastId).orderByAsc("id").last("limit " + size).list());
+        shopNameIndex.load((lastId, size) -> query().select("id", "name", "area", "address")
+                .gt("id", lastId).orderByAsc("id").last("limit " + size).list());
+    }
 
     @Override
     public Result queryById(Long id) {
+        //布隆过滤器判断店铺一定不存在，不用再查缓存和数据库
+        if (!bloomFilters.mightContain(BloomFilterRegistry.SHOP, id)) {
+            return Result.ok();
+        }
         //解决缓存穿透
 //        Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY,id,Shop.class, this::getById,CACHE_SHOP_TTL,TimeUnit.SECONDS);
         //互斥锁解决缓存击穿
+        if ("logical-expire".equals(shopCacheMode)) {
+            Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY,LOCK_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
+            return Result.ok(shopCounter.overlay(shop));
+        }
         Shop shop;
         try {
 //            shop = queryWithMutex(id);
-            shop = cacheClient.queryWithMutex(CACHE_SHOP_KEY,LOCK_SHOP_KEY,id,Shop.class,this::getById,CACHE_NULL_TTL,TimeUnit.SECONDS);
+            shop = cacheClient.queryWithMutex(CACHE_SHOP_KEY,LOCK_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
-        return Result.ok(shop);
+        //叠加还没写回数据库的销量和评论数
+        return Result.ok(shopCounter.overlay(shop));
+    }
+
+    @Override
+    public Result saveShop(Shop shop) {
+        save(shop);
+        addShopToType(shop);
+        shopGeoIndex.put(shop);
+        shopNameIndex.put(shop);
+        return Result.ok(shop.getId());
     }
 
     @Override
@@ -60,12 +160,387 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if(id == null){
             Result.fail("店铺id不能为空");
         }
+        Shop old = getById(id);
         //先更改数据库，然后再删除缓存，有利于线程安全
         updateById(shop);
-        String shopKey = CACHE_SHOP_KEY + id;
-        stringRedisTemplate.delete(shopKey);
+        if ("logical-expire".equals(shopCacheMode)) {
+            //逻辑过期模式不删缓存，事务提交后在重建锁下覆盖，避免删除后所有读请求一起查数据库
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    cacheClient.refreshWithLogicalExpire(CACHE_SHOP_KEY, LOCK_SHOP_KEY, id, ShopServiceImpl.this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                }
+            });
+        } else {
+            cacheClient.delete(CACHE_SHOP_KEY, id);
+        }
+        if (old != null) {
+            //类型变了要从原来类型的GEO里移除，坐标变了直接覆盖
+            if (shop.getTypeId() != null && !shop.getTypeId().equals(old.getTypeId())) {
+                stringRedisTemplate.opsForGeo().remove(SHOP_GEO_KEY + old.getTypeId(), id.toString());
+                stringRedisTemplate.opsForZSet().remove(SHOP_TYPE_IDS_KEY + old.getTypeId(), id.toString());
+            }
+            BeanUtil.copyProperties(shop, old, CopyOptions.create().ignoreNullValue());
+            addShopToType(old);
+            shopGeoIndex.put(old);
+            shopNameIndex.put(old);
+        }
         return Result.ok();
     }
 
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y) {
+        if (x == null || y == null) {
+            // 不需要按距离排序，从缓存的id列表里取出这一页的id
+            int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+            String key = loadTypeIds(typeId);
+            Set<String> members = key == null ? null
+                    : stringRedisTemplate.opsForZSet().range(key, from, from + SystemConstants.DEFAULT_PAGE_SIZE - 1);
+            return Result.ok(hydrate(members));
+        }
+        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
+        List<Long> ids = new ArrayList<>(SystemConstants.DEFAULT_PAGE_SIZE);
+        List<Double> distances = new ArrayList<>(SystemConstants.DEFAULT_PAGE_SIZE);
+        if (shopGeoIndex.isReady()) {
+            // 本地网格索引，不用访问Redis
+            ShopGeoIndex.Nearby result = shopGeoIndex.nearest(typeId.longValue(), x, y, nearbyRadius, end);
+            for (int i = from; i < result.size; i++) {
+                ids.add(result.ids[i]);
+                distances.add(result.distances[i]);
+            }
+        } else {
+            queryNearbyFromRedis(typeId, x, y, from, end, ids, distances);
+        }
+        return Result.ok(withDistances(ids, distances));
+    }
+
+    /**
+     * 批量查询店铺详情并设置距离，去掉已经不存在的店铺
+     */
+    private List<Shop> withDistances(List<Long> ids, List<Double> distances) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        // 店铺详情一次批量查出来
+        List<Shop> shops = queryShopsByIds(ids);
+        List<Shop> nearby = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            Shop shop = shops.get(i);
+            if (shop == null) {
+                continue;
+            }
+            // 缓存里的店铺是共享的，复制一份再设置距离
+            Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+            copy.setDistance(distances.get(i));
+            nearby.add(copy);
+        }
+        return nearby;
+    }
 
+    @Override
+    public Result queryShopByName(String name, Integer current) {
+        if (StrUtil.isBlank(name) || !shopNameIndex.isReady()) {
+            // 没有关键字，或者本地索引还没加载完成，查数据库
+            Page<Shop> page = query()
+                    .like(StrUtil.isNotBlank(name), "name", name)
+                    .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+            return Result.ok(page.getRecords());
+        }
+        List<Long> ids = shopNameIndex.search(name, (current - 1) * SystemConstants.MAX_PAGE_SIZE, SystemConstants.MAX_PAGE_SIZE);
+        if (ids.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        // 店铺详情走缓存批量查询
+        List<Shop> shops = queryShopsByIds(ids);
+        shops.removeIf(Objects::isNull);
+        return Result.ok(shops);
+    }
+
+    @Override
+    public Result scrollShopByType(Integer typeId, Long lastId, Double x, Double y, Double lastDistance) {
+        if (x != null && y != null) {
+            return Result.ok(scrollNearby(typeId, x, y, lastDistance, lastId));
+        }
+        // 排序键就是id，从缓存的id列表里取比游标大的下一页
+        String key = loadTypeIds(typeId);
+        Set<String> members = key == null ? null : stringRedisTemplate.opsForZSet()
+                .rangeByScore(key, lastId + 1, Double.POSITIVE_INFINITY, 0, SystemConstants.DEFAULT_PAGE_SIZE);
+        List<Shop> shops = hydrate(members);
+        ScrollResult r = new ScrollResult();
+        r.setList(shops);
+        if (!shops.isEmpty()) {
+            Long last = shops.get(shops.size() - 1).getId();
+            r.setMinTime(last);
+            r.setLastId(last);
+        }
+        return Result.ok(r);
+    }
+
+    @Override
+    public Result scrollShopByName(String name, Long lastScore, Long lastId) {
+        ScrollResult r = new ScrollResult();
+        if (StrUtil.isBlank(name) || !shopNameIndex.isReady()) {
+            // 查数据库时按id翻页，排序键固定为-1，索引加载完成后旧游标会从头开始
+            List<Shop> shops = query()
+                    .like(StrUtil.isNotBlank(name), "name", name)
+                    .gt("id", lastScore < 0 ? lastId : 0)
+                    .orderByAsc("id")
+                    .last("limit " + SystemConstants.MAX_PAGE_SIZE)
+                    .list();
+            r.setList(shops);
+            if (!shops.isEmpty()) {
+                r.setMinTime(-1L);
+                r.setLastId(shops.get(shops.size() - 1).getId());
+            }
+            return Result.ok(r);
+        }
+        List<long[]> hits = shopNameIndex.searchAfter(name, lastScore, lastId, SystemConstants.MAX_PAGE_SIZE);
+        List<Long> ids = new ArrayList<>(hits.size());
+        for (long[] hit : hits) {
+            ids.add(hit[1]);
+        }
+        List<Shop> shops = ids.isEmpty() ? new ArrayList<>() : queryShopsByIds(ids);
+        shops.removeIf(Objects::isNull);
+        r.setList(shops);
+        if (!hits.isEmpty()) {
+            // 游标取最后一个命中，即使这个店铺刚被删掉也不影响下一页
+            long[] last = hits.get(hits.size() - 1);
+            r.setMinTime(last[0]);
+            r.setLastId(last[1]);
+        }
+        return Result.ok(r);
+    }
+
+    /**
+     * 按(距离, id)滚动查询附近的店铺，从游标之后开始取一页，不需要跳过前面的页
+     */
+    private ScrollResult scrollNearby(Integer typeId, double x, double y, double lastDistance, long lastId) {
+        List<Long> ids = new ArrayList<>(SystemConstants.DEFAULT_PAGE_SIZE);
+        List<Double> distances = new ArrayList<>(SystemConstants.DEFAULT_PAGE_SIZE);
+        if (shopGeoIndex.isReady()) {
+            // 本地网格索引，只保留游标之后的店铺
+            ShopGeoIndex.Nearby result = shopGeoIndex.nearest(typeId.longValue(), x, y, nearbyRadius,
+                    lastDistance, lastId, SystemConstants.DEFAULT_PAGE_SIZE);
+            for (int i = 0; i < result.size; i++) {
+                ids.add(result.ids[i]);
+                distances.add(result.distances[i]);
+            }
+        } else {
+            scrollNearbyFromRedis(typeId, x, y, lastDistance, lastId, ids, distances);
+        }
+        ScrollResult r = new ScrollResult();
+        r.setList(withDistances(ids, distances));
+        if (!ids.isEmpty()) {
+            // 游标取最后一个命中，即使这个店铺刚被删掉也不影响下一页
+            r.setLastDistance(distances.get(distances.size() - 1));
+            r.setLastId(ids.get(ids.size() - 1));
+        }
+        return r;
+    }
+
+    /**
+     * 按id批量查询店铺详情，去掉已经不存在的店铺
+     */
+    private List<Shop> hydrate(Set<String> members) {
+        if (members == null || members.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<Long> ids = members.stream().map(Long::valueOf).collect(Collectors.toList());
+        List<Shop> shops = queryShopsByIds(ids);
+        shops.removeIf(Objects::isNull);
+        return shops;
+    }
+
+    /**
+     * 一个类型所有店铺的id按id升序缓存在zset里，分页只需要从里面取一段。
+     * 不存在时本节点只有一个线程去重建，节点之间用互斥锁，没抢到锁的等锁释放后直接用重建好的key
+     * @return zset的key，这个类型没有店铺时返回null
+     */
+    private String loadTypeIds(Integer typeId) {
+        String key = SHOP_TYPE_IDS_KEY + typeId;
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(key))) {
+            return key;
+        }
+        CompletableFuture<String> flight = new CompletableFuture<>();
+        CompletableFuture<String> leader = typeIdsLoading.putIfAbsent(typeId, flight);
+        if (leader != null) {
+            try {
+                return leader.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            String r = rebuildTypeIds(typeId, key);
+            flight.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            typeIdsLoading.remove(typeId, flight);
+        }
+    }
+
+    /**
+     * 从数据库按id分页加载，先写临时key再改名
+     */
+    private String rebuildTypeIds(Integer typeId, String key) {
+        BlockingRedisLock lock = new BlockingRedisLock(LOCK_SHOP_TYPE_IDS_KEY + typeId, stringRedisTemplate, lockNotifier);
+        boolean locked;
+        try {
+            locked = lock.tryLock(TimeUnit.SECONDS.toMillis(LOCK_SHOP_TTL), LOCK_SHOP_TTL);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待店铺id列表重建时被中断，typeId=" + typeId, e);
+        }
+        if (!locked) {
+            //等太久了，说明重建很慢或者锁没有正常释放，自己重建
+            log.warn("等待店铺id列表重建超时，typeId={}", typeId);
+        }
+        try {
+            // 等到锁的时候别的节点可能已经重建好了
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(key))) {
+                return key;
+            }
+            String tmpKey = key + ":" + UUID.randomUUID();
+            long lastId = 0;
+            int pageSize = 1000;
+            while (true) {
+                List<Object> ids = listObjs(new QueryWrapper<Shop>().select("id")
+                        .eq("type_id", typeId).gt("id", lastId)
+                        .orderByAsc("id").last("limit " + pageSize));
+                Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>(ids.size());
+                for (Object id : ids) {
+                    lastId = Long.parseLong(id.toString());
+                    tuples.add(new DefaultTypedTuple<>(id.toString(), (double) lastId));
+                }
+                if (!tuples.isEmpty()) {
+                    stringRedisTemplate.opsForZSet().add(tmpKey, tuples);
+                }
+                if (ids.size() < pageSize) {
+                    break;
+                }
+            }
+            if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(tmpKey))) {
+                return null;
+            }
+            stringRedisTemplate.expire(tmpKey, SHOP_TYPE_IDS_TTL, TimeUnit.MINUTES);
+            stringRedisTemplate.rename(tmpKey, key);
+            return key;
+        } finally {
+            if (locked) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 本地网格索引还没加载完成时用Redis GEO查询附近的店铺
+     */
+    private void queryNearbyFromRedis(Integer typeId, Double x, Double y, int from, int end, List<Long> ids, List<Double> distances) {
+        String key = SHOP_GEO_KEY + typeId;
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(key))) {
+            loadShopGeo(typeId);
+        }
+        // GEORADIUS按距离由近到远取前end个，Redis只返回id和距离，不需要数据库分页
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().radius(key,
+                new Circle(new Point(x, y), new Distance(nearbyRadius)),
+                RedisGeoCommands.GeoRadiusCommandArgs.newGeoRadiusArgs().includeDistance().sortAscending().limit(end));
+        if (results == null) {
+            return;
+        }
+        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> content = results.getContent();
+        for (int i = from; i < content.size(); i++) {
+            ids.add(Long.valueOf(content.get(i).getContent().getName()));
+            distances.add(content.get(i).getDistance().getValue());
+        }
+    }
+
+    /**
+     * 用脚本在Redis里跳过游标之前的店铺，只返回这一页的id和距离
+     */
+    private void scrollNearbyFromRedis(Integer typeId, double x, double y, double lastDistance, long lastId,
+                                       List<Long> ids, List<Double> distances) {
+        String key = SHOP_GEO_KEY + typeId;
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(key))) {
+            loadShopGeo(typeId);
+        }
+        List<?> page = stringRedisTemplate.execute(GEO_SCROLL_SCRIPT, Collections.singletonList(key),
+                String.valueOf(x), String.valueOf(y), String.valueOf(nearbyRadius),
+                String.valueOf(lastDistance), String.valueOf(lastId), String.valueOf(SystemConstants.DEFAULT_PAGE_SIZE));
+        if (page == null) {
+            return;
+        }
+        for (int i = 0; i + 1 < page.size(); i += 2) {
+            ids.add(Long.valueOf(page.get(i).toString()));
+            distances.add(Double.valueOf(page.get(i + 1).toString()));
+        }
+    }
+
+    /**
+     * 按id批量查询店铺，和ids顺序一一对应，不存在的为null。
+     * 互斥锁模式下店铺缓存存的是店铺本身，直接批量读缓存；逻辑过期模式下缓存格式不同，批量查数据库
+     */
+    private List<Shop> queryShopsByIds(List<Long> ids) {
+        if (!"logical-expire".equals(shopCacheMode)) {
+            return cacheClient.queryBatch(CACHE_SHOP_KEY, ids, Shop.class,
+                    missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                    CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        }
+        Map<Long, Shop> shopMap = listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, Function.identity()));
+        return ids.stream().map(shopMap::get).collect(Collectors.toList());
+    }
+
+    /**
+     * 把一个类型的店铺坐标从数据库加载到GEO，先写临时key再改名，加载过程中查询的请求看不到不完整的数据
+     */
+    private void loadShopGeo(Integer typeId) {
+        String key = SHOP_GEO_KEY + typeId;
+        String tmpKey = key + ":" + UUID.randomUUID();
+        long lastId = 0;
+        int pageSize = 1000;
+        while (true) {
+            List<Shop> shops = query().select("id", "x", "y")
+                    .eq("type_id", typeId).gt("id", lastId)
+                    .orderByAsc("id").last("limit " + pageSize).list();
+            List<RedisGeoCommands.GeoLocation<String>> locations = new ArrayList<>(shops.size());
+            for (Shop shop : shops) {
+                if (shop.getX() != null && shop.getY() != null) {
+                    locations.add(new RedisGeoCommands.GeoLocation<>(shop.getId().toString(), new Point(shop.getX(), shop.getY())));
+                }
+                lastId = shop.getId();
+            }
+            if (!locations.isEmpty()) {
+                stringRedisTemplate.opsForGeo().add(tmpKey, locations);
+            }
+            if (shops.size() < pageSize) {
+                break;
+            }
+        }
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(tmpKey))) {
+            stringRedisTemplate.rename(tmpKey, key);
+        }
+    }
+
+    /**
+     * 新增或修改店铺后同步GEO和类型的id列表，还没加载过的话等第一次查询时整体加载
+     */
+    private void addShopToType(Shop shop) {
+        if (shop.getTypeId() == null) {
+            return;
+        }
+        String idsKey = SHOP_TYPE_IDS_KEY + shop.getTypeId();
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(idsKey))) {
+            stringRedisTemplate.opsForZSet().add(idsKey, shop.getId().toString(), shop.getId());
+        }
+        if (shop.getX() == null || shop.getY() == null) {
+            return;
+        }
+        String key = SHOP_GEO_KEY + shop.getTypeId();
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(key))) {
+            stringRedisTemplate.opsForGeo().add(key, new Point(shop.getX(), shop.getY()), shop.getId().toString());
+        }
+    }
 }
@@ -1,18 +1,16 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.HmdpCached;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_KEY;
 
 /**
  * <p>
@@ -25,21 +23,9 @@ import java.util.List;
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
-    @Autowired
-    private StringRedisTemplate stringRedisTemplate;
-
-    @Autowired
-    private RedisTemplate<String,Object> redisTemplate;
     @Override
+    @HmdpCached(keyPrefix = CACHE_SHOP_TYPE_KEY, ttl = 24, unit = TimeUnit.HOURS)
     public List<ShopType> queryList() {
-        String shopTypeKey = "shopType";
-        String shopTypeJson = stringRedisTemplate.opsForValue().get(shopTypeKey);
-        if(StrUtil.isNotBlank(shopTypeJson)){
-            return JSONUtil.toList(shopTypeJson,ShopType.class);
-        }
-        List<ShopType> shopTypes = query().orderByAsc("sort").list();
-        shopTypeJson = JSONUtil.toJsonStr(shopTypes);
-        stringRedisTemplate.opsForValue().set(shopTypeKey,shopTypeJson);
-        return shopTypes;
+        return query().orderByAsc("sort").list();
     }
 }
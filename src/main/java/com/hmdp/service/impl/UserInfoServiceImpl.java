@@ -4,8 +4,11 @@ import com.hmdp.entity.UserInfo;
 import com.hmdp.mapper.UserInfoMapper;
 import com.hmdp.service.IUserInfoService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.HmdpCached;
 import org.springframework.stereotype.Service;
 
+import static com.hmdp.utils.RedisConstants.CACHE_USER_INFO_KEY;
+
 /**
  * <p>
  *  服务实现类
@@ -17,4 +20,14 @@ import org.springframework.stereotype.Service;
 @Service
 public class UserInfoServiceImpl extends ServiceImpl<UserInfoMapper, UserInfo> implements IUserInfoService {
 
+    @Override
+    @HmdpCached(keyPrefix = CACHE_USER_INFO_KEY, key = "#userId", ttl = 30)
+    public UserInfo queryUserInfo(Long userId) {
+        UserInfo info = getById(userId);
+        if (info != null) {
+            info.setCreateTime(null);
+            info.setUpdateTime(null);
+        }
+        return info;
+    }
 }
@@ -0,0 +1,278 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillStockManager;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DEAD_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+
+/**
+ * 秒杀订单异步落库：从Redis Stream消费者组里读取订单写入数据库，处理成功后ack。
+ * 没有ack的订单留在pending-list里，出异常或者重启后会重新处理；
+ * 其他节点宕机留下的pending订单超过空闲时间后会被转移到当前节点。
+ * 订单攒够batch-size条或者等够batch-window毫秒后批量落库一次，ack的同时把消息从队列里删掉。
+ * 数据库拒绝的订单在ack之前归还Redis里的库存和购买资格，并转存到死信队列里。
+ * 只有hmdp.seckill.mode为stream时才会启动。
+ */
+@Slf4j
+@Component
+public class VoucherOrderHandler {
+    private static final Duration READ_BLOCK = Duration.ofSeconds(2);
+    private static final long CLAIM_INTERVAL_MILLIS = 30_000L;
+    private static final long CLAIM_MIN_IDLE_MILLIS = 60_000L;
+
+    private static final DefaultRedisScript<Long> GROUP_SCRIPT;
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+    private static final DefaultRedisScript<Long> ACK_SCRIPT;
+    static {
+        GROUP_SCRIPT = new DefaultRedisScript<>();
+        GROUP_SCRIPT.setLocation(new ClassPathResource("script/stream_group.lua"));
+        GROUP_SCRIPT.setResultType(Long.class);
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("script/stream_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+        ACK_SCRIPT = new DefaultRedisScript<>();
+        ACK_SCRIPT.setLocation(new ClassPathResource("script/stream_ack.lua"));
+        ACK_SCRIPT.setResultType(Long.class);
+    }
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private IVoucherOrderService voucherOrderService;
+    @Autowired
+    private SeckillStockManager seckillStockManager;
+    @Value("${hmdp.seckill.mode:lua}")
+    private String seckillMode;
+    @Value("${server.port:8081}")
+    private String port;
+    @Value("${hmdp.seckill.batch-size:200}")
+    private int batchSize;
+    @Value("${hmdp.seckill.batch-window:50}")
+    private long batchWindowMillis;
+
+    private final ExecutorService orderExecutor = Executors.newSingleThreadExecutor();
+    private volatile boolean running = true;
+    private String consumerName;
+    private long lastClaimTime;
+
+    @PostConstruct
+    public void init() {
+        if (!"stream".equals(seckillMode)) {
+            //其他模式不会往队列里写订单，不需要消费者组和消费线程
+            running = false;
+            return;
+        }
+        //消费者名字重启后保持不变，这样重启后还能读到自己pending-list里的订单
+        consumerName = localHostName() + ":" + port;
+        stringRedisTemplate.execute(GROUP_SCRIPT, Collections.singletonList(SECKILL_ORDER_STREAM), SECKILL_ORDER_GROUP);
+        orderExecutor.submit(this::consumeOrders);
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        running = false;
+        orderExecutor.shutdown();
+        orderExecutor.awaitTermination(READ_BLOCK.getSeconds() + 1, TimeUnit.SECONDS);
+    }
+
+    private void consumeOrders() {
+        //先把上次没处理完的订单处理掉
+        handlePendingList();
+        List<MapRecord<String, Object, Object>> buffer = new ArrayList<>();
+        long deadline = 0;
+        while (running) {
+            try {
+                claimIdleOrders();
+                //缓冲区为空时长时间阻塞等新订单，不为空时最多等到攒批的截止时间
+                long blockMillis = buffer.isEmpty() ? READ_BLOCK.toMillis() : deadline - System.currentTimeMillis();
+                if (blockMillis > 0) {
+                    List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                            StreamReadOptions.empty().count(batchSize - buffer.size()).block(Duration.ofMillis(blockMillis)),
+                            StreamOffset.create(SECKILL_ORDER_STREAM, ReadOffset.lastConsumed())
+                    );
+                    if (records != null && !records.isEmpty()) {
+                        if (buffer.isEmpty()) {
+                            deadline = System.currentTimeMillis() + batchWindowMillis;
+                        }
+                        buffer.addAll(records);
+                    }
+                }
+                if (buffer.isEmpty() || (buffer.size() < batchSize && System.currentTimeMillis() < deadline)) {
+                    continue;
+                }
+                List<MapRecord<String, Object, Object>> batch = new ArrayList<>(buffer);
+                buffer.clear();
+                if (!handleRecords(batch)) {
+                    handlePendingList();
+                }
+            } catch (Exception e) {
+                log.error("处理订单消息异常", e);
+                //已经读出来的消息还在pending-list里，交给pending-list处理
+                buffer.clear();
+                handlePendingList();
+            }
+        }
+    }
+
+    private void handlePendingList() {
+        while (running) {
+            try {
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                        StreamReadOptions.empty().count(batchSize),
+                        StreamOffset.create(SECKILL_ORDER_STREAM, ReadOffset.from("0"))
+                );
+                if (records == null || records.isEmpty()) {
+                    return;
+                }
+                if (!handleRecords(records)) {
+                    //数据库暂时不可用，稍后再重试，避免空转
+                    Thread.sleep(1000);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("处理pending-list订单异常", e);
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    //返回false表示有订单因为异常没有ack，需要之后从pending-list重试
+    private boolean handleRecords(List<MapRecord<String, Object, Object>> records) {
+        List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+        }
+        Map<Long, String> failures;
+        try {
+            failures = voucherOrderService.createVoucherOrders(voucherOrders);
+        } catch (Exception e) {
+            //整批事务回滚了，逐条重试，找出是哪条订单有问题
+            log.error("批量落库{}个订单异常，改为逐条落库", voucherOrders.size(), e);
+            return handleRecordsOneByOne(records, voucherOrders);
+        }
+        //数据库判断下单失败，说明Redis和数据库不一致，以数据库为准，不再重试
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            String reason = failures.get(voucherOrder.getId());
+            if (reason != null) {
+                reject(voucherOrder, reason);
+            }
+        }
+        acknowledge(records.stream().map(MapRecord::getId).toArray(RecordId[]::new));
+        return true;
+    }
+
+    private boolean handleRecordsOneByOne(List<MapRecord<String, Object, Object>> records, List<VoucherOrder> voucherOrders) {
+        boolean allDone = true;
+        for (int i = 0; i < records.size(); i++) {
+            VoucherOrder voucherOrder = voucherOrders.get(i);
+            try {
+                Result result = voucherOrderService.createVoucherOrder(voucherOrder);
+                if (!Boolean.TRUE.equals(result.getSuccess())) {
+                    reject(voucherOrder, result.getErrorMsg());
+                }
+                acknowledge(records.get(i).getId());
+            } catch (Exception e) {
+                log.error("订单{}落库异常", voucherOrder.getId(), e);
+                allDone = false;
+            }
+        }
+        return allDone;
+    }
+
+    /**
+     * 数据库拒绝的订单：归还Redis里预扣的库存和购买资格，再转存到死信队列。
+     * 在ack之前执行，中途出异常时消息还在pending-list里，重试时归还不会重复生效
+     */
+    private void reject(VoucherOrder voucherOrder, String reason) {
+        log.warn("订单{}落库失败：{}", voucherOrder.getId(), reason);
+        seckillStockManager.release(voucherOrder.getVoucherId(), voucherOrder.getUserId());
+        Map<String, String> dead = new HashMap<>();
+        dead.put("id", voucherOrder.getId().toString());
+        dead.put("userId", voucherOrder.getUserId().toString());
+        dead.put("voucherId", voucherOrder.getVoucherId().toString());
+        dead.put("reason", String.valueOf(reason));
+        stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DEAD_STREAM, dead);
+    }
+
+    private void acknowledge(RecordId... ids) {
+        Object[] args = new Object[ids.length + 1];
+        args[0] = SECKILL_ORDER_GROUP;
+        for (int i = 0; i < ids.length; i++) {
+            args[i + 1] = ids[i].getValue();
+        }
+        stringRedisTemplate.execute(ACK_SCRIPT, Collections.singletonList(SECKILL_ORDER_STREAM), args);
+    }
+
+    private void claimIdleOrders() {
+        long now = System.currentTimeMillis();
+        if (now - lastClaimTime < CLAIM_INTERVAL_MILLIS) {
+            return;
+        }
+        lastClaimTime = now;
+        //按消息id分页扫描整个pending-list，每次脚本只检查一页
+        long claimed = 0;
+        String start = "-";
+        while (running && !start.isEmpty()) {
+            List<?> page = stringRedisTemplate.execute(CLAIM_SCRIPT, Collections.singletonList(SECKILL_ORDER_STREAM),
+                    SECKILL_ORDER_GROUP, consumerName, String.valueOf(batchSize), String.valueOf(CLAIM_MIN_IDLE_MILLIS), start);
+            if (page == null || page.size() < 2) {
+                break;
+            }
+            claimed += Long.parseLong(page.get(0).toString());
+            start = page.get(1).toString();
+        }
+        if (claimed > 0) {
+            log.info("从其他消费者接管了{}个未确认的订单", claimed);
+            handlePendingList();
+        }
+    }
+
+    private static String localHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+}
@@ -3,21 +3,34 @@ package com.hmdp.service.impl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
-import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.ReentrantRedisLock;
+import com.hmdp.utils.SeckillStockManager;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -27,6 +40,7 @@ import java.time.LocalDateTime;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
     @Autowired
@@ -34,13 +48,91 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Autowired
     private ISeckillVoucherService seckillVoucherService;
     @Autowired
+    private SeckillVoucherMapper seckillVoucherMapper;
+    @Autowired
     private RedisIdWorker redisIdWorker;
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private SeckillSoldOutRegistry soldOutRegistry;
+    @Autowired
+    private SeckillStockManager seckillStockManager;
+    @Autowired
+    private SeckillVoucherCache seckillVoucherCache;
+    @Autowired
+    private ShopCounter shopCounter;
+    @Value("${hmdp.seckill.mode:lua}")
+    private String seckillMode;
 
     @Override
     public Result seckillVoucher(Long voucherId) {
-        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        //已经卖完的优惠券直接在本地拒绝
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        if ("db".equals(seckillMode)) {
+            return seckillVoucherWithDbLock(voucherId);
+        }
+        return seckillVoucherWithLua(voucherId);
+    }
+
+    //秒杀资格全部在Redis里判断，只有抢到的请求才会访问数据库
+    private Result seckillVoucherWithLua(Long voucherId) {
+        //开始结束时间走本地缓存，不查数据库
+        SeckillVoucher voucher = seckillVoucherCache.get(voucherId);
+        Result timeCheck = checkSeckillTime(voucher);
+        if (timeCheck != null) {
+            return timeCheck;
+        }
+        Long userId = UserHolder.getUser().getId();
+        //异步模式下订单id要先生成，和秒杀资格一起写进消息队列；同步模式抢到了再生成，没抢到的请求不消耗id
+        boolean async = "stream".equals(seckillMode);
+        Long orderId = async ? redisIdWorker.nextId("order") : null;
+        //扣库存之前取补货版本号，扣减期间补了货的话售罄标记会被补货消息清掉
+        long epoch = soldOutRegistry.epoch(voucherId);
+        long r = seckillStockManager.acquire(voucherId, userId, orderId, async,
+                () -> seckillVoucherService.getById(voucherId).getStock());
+        if (r == SeckillStockManager.SOLD_OUT) {
+            soldOutRegistry.markSoldOut(voucherId, epoch);
+            return Result.fail("库存不足");
+        }
+        if (r == SeckillStockManager.DUPLICATE) {
+            return Result.fail("不能重复下单");
+        }
+        if (r != SeckillStockManager.SUCCESS) {
+            return Result.fail("秒杀库存加载失败");
+        }
+        if (async) {
+            //订单已经进入消息队列，由VoucherOrderHandler异步落库
+            return Result.ok(orderId);
+        }
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setUserId(userId);
+        voucherOrder.setVoucherId(voucherId);
+        IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
+        try {
+            voucherOrder.setId(redisIdWorker.nextId("order"));
+            Result result = proxy.createVoucherOrder(voucherOrder);
+            if (!Boolean.TRUE.equals(result.getSuccess())) {
+                //数据库判断下单失败时以数据库为准，归还Redis里预扣的库存和购买资格，售罄标记由数据库的判断决定
+                seckillStockManager.release(voucherId, userId);
+            }
+            return result;
+        } catch (RuntimeException e) {
+            //订单没有写进数据库，Redis里已经扣了库存，要把资格还回去
+            rollbackSeckill(voucherId, userId);
+            throw e;
+        }
+    }
+
+    private void rollbackSeckill(Long voucherId, Long userId) {
+        if (seckillStockManager.release(voucherId, userId)) {
+            //库存还回去了，售罄标记要撤销
+            soldOutRegistry.reset(voucherId);
+        }
+    }
+
+    private Result checkSeckillTime(SeckillVoucher voucher) {
         if(voucher == null){
             return Result.fail("没有查询到这个优惠卷");
         }
@@ -50,14 +142,26 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         if(LocalDateTime.now().isAfter(voucher.getEndTime())){
             return Result.fail("秒杀已经结束");
         }
+        return null;
+    }
+
+    private Result seckillVoucherWithDbLock(Long voucherId) {
+        long epoch = soldOutRegistry.epoch(voucherId);
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        Result timeCheck = checkSeckillTime(voucher);
+        if (timeCheck != null) {
+            return timeCheck;
+        }
         Integer stock = voucher.getStock();
         if (stock < 1) {
+            soldOutRegistry.markSoldOut(voucherId, epoch);
             return Result.fail("库存不足");
         }
         Long userId = UserHolder.getUser().getId();
         //new的对象里面，里面的Autowired不会进行自动注入
-        SimpleRedisLock lock = new SimpleRedisLock("order:"+userId.toString(),stringRedisTemplate);
-        if (!lock.tryLock(1200L)) {
+        //锁的租期很短，由看门狗续期，节点挂了锁很快就会释放
+        ReentrantRedisLock lock = new ReentrantRedisLock("order:"+userId.toString(),stringRedisTemplate);
+        if (!lock.tryLock(RedisConstants.LOCK_ORDER_TTL)) {
             return Result.fail("一个用户同一时间只能抢一个优惠卷");
         }
         try {
@@ -79,11 +183,13 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             return Result.fail("用户已经买过了");
         }
         //利用CAS乐观锁，乐观锁适合并发量不大的情况
+        long epoch = soldOutRegistry.epoch(voucherId);
         boolean success = seckillVoucherService.update().setSql("stock = stock - 1")
                 .eq("voucher_id", voucherId)
                 .gt("stock",0)
                 .update();
         if(!success){
+            soldOutRegistry.markSoldOut(voucherId, epoch);
             return Result.fail("库存不足！");
         }
         VoucherOrder voucherOrder = new VoucherOrder();
@@ -92,6 +198,95 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         voucherOrder.setUserId(userId);
         voucherOrder.setVoucherId(voucherId);
         save(voucherOrder);
+        shopCounter.incrementSold(voucherId, 1);
         return Result.ok(orderId);
     }
+
+    //Redis已经判断过资格，这里的查询和乐观锁只是兜底，防止Redis数据和数据库不一致
+    @Override
+    @Transactional
+    public Result createVoucherOrder(VoucherOrder voucherOrder) {
+        Long userId = voucherOrder.getUserId();
+        Long voucherId = voucherOrder.getVoucherId();
+        VoucherOrder existing = query().eq("user_id", userId).eq("voucher_id", voucherId).last("limit 1").one();
+        if (existing != null) {
+            //消息队列是至少一次投递，落库成功但没来得及ack的订单会被重新消费
+            if (existing.getId().equals(voucherOrder.getId())) {
+                return Result.ok(existing.getId());
+            }
+            log.warn("用户{}重复购买优惠券{}", userId, voucherId);
+            return Result.fail("用户已经买过了");
+        }
+        long epoch = soldOutRegistry.epoch(voucherId);
+        boolean success = seckillVoucherService.update().setSql("stock = stock - 1")
+                .eq("voucher_id", voucherId)
+                .gt("stock", 0)
+                .update();
+        if (!success) {
+            log.warn("优惠券{}数据库库存不足", voucherId);
+            soldOutRegistry.markSoldOut(voucherId, epoch);
+            return Result.fail("库存不足！");
+        }
+        save(voucherOrder);
+        shopCounter.incrementSold(voucherId, 1);
+        return Result.ok(voucherOrder.getId());
+    }
+
+    //批量落库：一条多行insert，每个优惠券一条扣库存的update，返回落库失败的订单id和原因
+    @Override
+    @Transactional
+    public Map<Long, String> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        Map<Long, String> failures = new LinkedHashMap<>();
+        if (voucherOrders.isEmpty()) {
+            return failures;
+        }
+        //查出这批用户已经有的订单，一人一单兜底和重复消费判断都靠它
+        Set<Long> voucherIds = voucherOrders.stream().map(VoucherOrder::getVoucherId).collect(Collectors.toSet());
+        Set<Long> userIds = voucherOrders.stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        Map<String, Long> existing = query().select("id", "user_id", "voucher_id")
+                .in("voucher_id", voucherIds).in("user_id", userIds).list()
+                .stream().collect(Collectors.toMap(o -> o.getUserId() + ":" + o.getVoucherId(), VoucherOrder::getId, (a, b) -> a));
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = new LinkedHashMap<>();
+        Set<Long> seenIds = new HashSet<>();
+        for (VoucherOrder order : voucherOrders) {
+            if (!seenIds.add(order.getId())) {
+                //同一批里重复投递的同一个订单
+                continue;
+            }
+            String buyer = order.getUserId() + ":" + order.getVoucherId();
+            Long existingId = existing.putIfAbsent(buyer, order.getId());
+            if (existingId != null) {
+                if (!existingId.equals(order.getId())) {
+                    failures.put(order.getId(), "用户已经买过了");
+                }
+                continue;
+            }
+            ordersOfVoucher.computeIfAbsent(order.getVoucherId(), k -> new ArrayList<>()).add(order);
+        }
+        List<VoucherOrder> toInsert = new ArrayList<>();
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            List<VoucherOrder> orders = entry.getValue();
+            int accepted = orders.size();
+            long epoch = soldOutRegistry.epoch(voucherId);
+            if (seckillVoucherMapper.decreaseStock(voucherId, accepted) == 0) {
+                //整批扣不下来，说明数据库库存比Redis少，只扣剩下的部分
+                SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+                accepted = voucher == null ? 0 : Math.min(Math.max(voucher.getStock(), 0), orders.size());
+                if (accepted > 0 && seckillVoucherMapper.decreaseStock(voucherId, accepted) == 0) {
+                    accepted = 0;
+                }
+                for (VoucherOrder order : orders.subList(accepted, orders.size())) {
+                    failures.put(order.getId(), "库存不足！");
+                }
+                soldOutRegistry.markSoldOut(voucherId, epoch);
+            }
+            toInsert.addAll(orders.subList(0, accepted));
+            shopCounter.incrementSold(voucherId, accepted);
+        }
+        if (!toInsert.isEmpty()) {
+            getBaseMapper().insertBatch(toInsert);
+        }
+        return failures;
+    }
 }
@@ -7,12 +7,21 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.HmdpCached;
+import com.hmdp.utils.HmdpEvict;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockManager;
+import org.springframework.aop.framework.AopContext;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.List;
 
+import static com.hmdp.utils.RedisConstants.CACHE_VOUCHER_LIST_KEY;
+
 /**
  * <p>
  *  服务实现类
@@ -26,17 +35,37 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
 
     @Resource
     private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private SeckillStockManager seckillStockManager;
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+    @Resource
+    private SeckillVoucherCache seckillVoucherCache;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // 查询优惠券信息，通过代理调用才能走缓存
+        IVoucherService proxy = (IVoucherService) AopContext.currentProxy();
+        List<Voucher> vouchers = proxy.listVoucherOfShop(shopId);
         // 返回结果
         return Result.ok(vouchers);
     }
 
+    @Override
+    @HmdpCached(keyPrefix = CACHE_VOUCHER_LIST_KEY, key = "#shopId", strategy = HmdpCached.Strategy.MUTEX, ttl = 1)
+    public List<Voucher> listVoucherOfShop(Long shopId) {
+        return getBaseMapper().queryVoucherOfShop(shopId);
+    }
+
+    @Override
+    @HmdpEvict(keyPrefix = CACHE_VOUCHER_LIST_KEY, key = "#voucher.shopId")
+    public void addVoucher(Voucher voucher) {
+        save(voucher);
+    }
+
     @Override
     @Transactional
+    @HmdpEvict(keyPrefix = CACHE_VOUCHER_LIST_KEY, key = "#voucher.shopId")
     public void addSeckillVoucher(Voucher voucher) {
         // 保存优惠券
         save(voucher);
@@ -47,5 +76,36 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        // 事务提交之后再预热，回滚时不会在缓存和Redis里留下数据库里没有的优惠券
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                // 秒杀时间窗口预热到缓存
+                seckillVoucherCache.put(seckillVoucher);
+                // 库存预热到Redis，秒杀时直接在Redis里扣减
+                seckillStockManager.load(voucher.getId(), voucher.getStock());
+            }
+        });
+    }
+
+    @Override
+    @Transactional
+    public boolean restockSeckillVoucher(Long voucherId, int amount) {
+        boolean success = seckillVoucherService.update().setSql("stock = stock + " + amount)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            return false;
+        }
+        // 数据库提交之后再改Redis，回滚时Redis里不会多出库存
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                seckillStockManager.restock(voucherId, amount);
+                // Redis里有库存了再清掉各节点的售罄标记
+                soldOutRegistry.reset(voucherId);
+            }
+        });
+        return true;
     }
 }
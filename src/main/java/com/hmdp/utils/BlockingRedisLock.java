@@ -0,0 +1,101 @@
+package com.hmdp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 可以在限定时间内阻塞等待的Redis锁。
+ * 加锁失败后订阅锁释放通知，持有者解锁时由lua脚本发布消息，等待的线程立即被唤醒重试，
+ * 替代原来sleep之后再setIfAbsent的轮询。
+ * 和SimpleRedisLock不同，这里传入的是完整的锁key。
+ */
+public class BlockingRedisLock implements ILock {
+    private static final String ID_PREFIX = UUID.randomUUID() + "-";
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    static {
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("script/unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisLockNotifier lockNotifier;
+    private final String lockKey;
+    private String owner;
+
+    public BlockingRedisLock(String lockKey, StringRedisTemplate stringRedisTemplate, RedisLockNotifier lockNotifier) {
+        this.lockKey = lockKey;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.lockNotifier = lockNotifier;
+    }
+
+    @Override
+    public Boolean tryLock(Long timeoutSec) {
+        //持有者标识在加锁时生成，谁加的锁谁才能解
+        String value = ID_PREFIX + Thread.currentThread().getId();
+        boolean success = Boolean.TRUE.equals(
+                stringRedisTemplate.opsForValue().setIfAbsent(lockKey, value, timeoutSec, TimeUnit.SECONDS));
+        if (success) {
+            owner = value;
+        }
+        return success;
+    }
+
+    /**
+     * 最多等待waitMillis毫秒获取锁
+     */
+    public boolean tryLock(long waitMillis, Long timeoutSec) throws InterruptedException {
+        if (tryLock(timeoutSec)) {
+            return true;
+        }
+        long deadline = System.currentTimeMillis() + waitMillis;
+        RedisLockNotifier.Waiters waiters = lockNotifier.subscribe(lockKey);
+        try {
+            while (true) {
+                CountDownLatch latch = waiters.latch();
+                if (tryLock(timeoutSec)) {
+                    return true;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                lockNotifier.await(lockKey, latch, remaining);
+            }
+        } finally {
+            lockNotifier.unsubscribe(lockKey);
+        }
+    }
+
+    /**
+     * 不抢锁，只等待锁被释放，用于等别人重建完缓存后直接读缓存
+     * @return 等待期间锁是否已经被释放
+     */
+    public boolean awaitUnlock(long waitMillis) throws InterruptedException {
+        RedisLockNotifier.Waiters waiters = lockNotifier.subscribe(lockKey);
+        try {
+            return lockNotifier.await(lockKey, waiters.latch(), waitMillis);
+        } finally {
+            lockNotifier.unsubscribe(lockKey);
+        }
+    }
+
+    @Override
+    public void unlock() {
+        if (owner == null) {
+            return;
+        }
+        stringRedisTemplate.execute(UNLOCK_SCRIPT,
+                Collections.singletonList(lockKey),
+                owner,
+                RedisConstants.LOCK_RELEASED_CHANNEL
+        );
+        owner = null;
+    }
+}
@@ -0,0 +1,160 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+import java.util.function.LongSupplier;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+
+/**
+ * 按表维护的本地id布隆过滤器，查缓存和数据库之前先判断id是否可能存在，拦截随机id的穿透请求。
+ * 启动后在后台从表里按id分页加载，加载完成之前不拦截任何请求。
+ * 新增数据时调用add，通过发布订阅同步到所有节点。
+ * 删除的数据不会从过滤器里移除，定期在后台重建一个新的过滤器，建好之后再替换旧的，重建期间新增的id两边都写。
+ */
+@Slf4j
+@Component
+public class BloomFilterRegistry implements MessageListener {
+    public static final String SHOP = "shop";
+    public static final String USER = "user";
+    public static final String BLOG = "blog";
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+    @Value("${hmdp.bloom.page-size:1000}")
+    private int pageSize;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ExecutorService buildExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "bloom-filter-build");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(BLOOM_ADD_CHANNEL));
+    }
+
+    /**
+     * 注册一张表的过滤器并在后台开始加载
+     * @param counter 查询表的总行数，用来确定过滤器的大小
+     * @param pageLoader 参数是上一页最后一个id和每页大小，按id升序返回下一页的id
+     */
+    public void register(String name, LongSupplier counter, BiFunction<Long, Integer, List<Long>> pageLoader) {
+        entries.put(name, new Entry(counter, pageLoader));
+        rebuild(name);
+    }
+
+    /**
+     * @return false表示id一定不存在；过滤器还没有加载完成时总是返回true
+     */
+    public boolean mightContain(String name, Long id) {
+        if (id == null) {
+            return false;
+        }
+        Entry entry = entries.get(name);
+        BloomFilter filter = entry == null ? null : entry.current;
+        return filter == null || filter.mightContain(id);
+    }
+
+    /**
+     * 新增数据后调用，通知所有节点
+     */
+    public void add(String name, Long id) {
+        addLocal(name, id);
+        stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL, name + ":" + id);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int i = body.lastIndexOf(':');
+        addLocal(body.substring(0, i), Long.valueOf(body.substring(i + 1)));
+    }
+
+    private void addLocal(String name, Long id) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return;
+        }
+        //先写正在重建的过滤器，再写当前的，保证替换之后也能查到
+        BloomFilter building = entry.building;
+        if (building != null) {
+            building.put(id);
+        }
+        BloomFilter current = entry.current;
+        if (current != null) {
+            current.put(id);
+        }
+    }
+
+    @Scheduled(initialDelayString = "${hmdp.bloom.rebuild-interval:86400000}", fixedDelayString = "${hmdp.bloom.rebuild-interval:86400000}")
+    public void rebuildAll() {
+        entries.keySet().forEach(this::rebuild);
+    }
+
+    public void rebuild(String name) {
+        buildExecutor.execute(() -> {
+            Entry entry = entries.get(name);
+            try {
+                //留出一倍的余量给重建周期内新增的数据
+                BloomFilter filter = new BloomFilter(entry.counter.getAsLong() * 2, fpp);
+                entry.building = filter;
+                long lastId = 0;
+                long count = 0;
+                while (true) {
+                    List<Long> ids = entry.pageLoader.apply(lastId, pageSize);
+                    for (Long id : ids) {
+                        filter.put(id);
+                    }
+                    count += ids.size();
+                    if (ids.size() < pageSize) {
+                        break;
+                    }
+                    lastId = ids.get(ids.size() - 1);
+                }
+                entry.current = filter;
+                log.info("布隆过滤器{}加载完成，共{}个id", name, count);
+            } catch (Exception e) {
+                //加载失败继续使用旧的过滤器，下个周期再重建
+                log.error("布隆过滤器{}加载失败", name, e);
+            } finally {
+                entry.building = null;
+            }
+        });
+    }
+
+    private static class Entry {
+        private final LongSupplier counter;
+        private final BiFunction<Long, Integer, List<Long>> pageLoader;
+        private volatile BloomFilter current;
+        private volatile BloomFilter building;
+
+        private Entry(LongSupplier counter, BiFunction<Long, Integer, List<Long>> pageLoader) {
+            this.counter = counter;
+            this.pageLoader = pageLoader;
+        }
+    }
+}
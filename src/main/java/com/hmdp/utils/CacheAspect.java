@@ -0,0 +1,85 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.AfterReturning;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.expression.MethodBasedEvaluationContext;
+import org.springframework.core.DefaultParameterNameDiscoverer;
+import org.springframework.core.Ordered;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.core.annotation.Order;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * HmdpCached和HmdpEvict的切面，缓存的读写和击穿、穿透的处理都交给CacheClient。
+ * 优先级最高，包在事务切面外面，删除缓存发生在事务提交之后。
+ */
+@Aspect
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class CacheAspect {
+    private static final SpelExpressionParser PARSER = new SpelExpressionParser();
+    private static final ParameterNameDiscoverer PARAMETER_NAMES = new DefaultParameterNameDiscoverer();
+
+    @Autowired
+    private CacheClient cacheClient;
+
+    private final Map<String, Expression> expressions = new ConcurrentHashMap<>();
+
+    @Around("@annotation(cached)")
+    public Object cached(ProceedingJoinPoint joinPoint, HmdpCached cached) throws Throwable {
+        Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+        String id = key(cached.key(), joinPoint);
+        Type type = method.getGenericReturnType();
+        String lockKeyPrefix = StrUtil.isNotEmpty(cached.lockKeyPrefix()) ? cached.lockKeyPrefix() : "lock:" + cached.keyPrefix();
+        //逻辑过期模式会在后台线程里重建，proceed每次都会重新执行一遍目标方法
+        Function<String, Object> dbFallback = k -> {
+            try {
+                return joinPoint.proceed();
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        };
+        switch (cached.strategy()) {
+            case MUTEX:
+                return cacheClient.queryWithMutex(cached.keyPrefix(), lockKeyPrefix, id, type, dbFallback, cached.ttl(), cached.unit());
+            case LOGICAL_EXPIRE:
+                return cacheClient.queryWithLogicalExpire(cached.keyPrefix(), lockKeyPrefix, id, type, dbFallback, cached.ttl(), cached.unit());
+            default:
+                return cacheClient.queryWithPassThrough(cached.keyPrefix(), id, type, dbFallback, cached.ttl(), cached.unit());
+        }
+    }
+
+    @AfterReturning("@annotation(evict)")
+    public void evict(JoinPoint joinPoint, HmdpEvict evict) {
+        cacheClient.delete(evict.keyPrefix(), key(evict.key(), joinPoint));
+    }
+
+    private String key(String spel, JoinPoint joinPoint) {
+        Object[] args = joinPoint.getArgs();
+        if (StrUtil.isEmpty(spel)) {
+            return Arrays.stream(args).map(String::valueOf).collect(Collectors.joining(":"));
+        }
+        Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+        MethodBasedEvaluationContext context = new MethodBasedEvaluationContext(joinPoint.getTarget(), method, args, PARAMETER_NAMES);
+        Expression expression = expressions.computeIfAbsent(spel, PARSER::parseExpression);
+        return String.valueOf(expression.getValue(context));
+    }
+}
@@ -1,139 +1,756 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSON;
+import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 
 import static com.hmdp.utils.RedisConstants.*;
 import static com.hmdp.utils.RedisConstants.LOCK_SHOP_KEY;
 
+/**
+ * Redis缓存工具。
+ * 通过enableLocalCache给某个key前缀开启进程内的一级缓存，命中时不访问Redis也不用反序列化，
+ * Redis作为二级缓存。delete删除缓存时通过发布订阅通知所有节点清掉一级缓存，
+ * 一级缓存的过期时间是兜底，通知丢失时最多读到这么久的旧数据。
+ * 一级缓存里保存的是对象本身，调用方不能修改查询返回的对象。
+ * 查询方法的type可以是Class，也可以是带泛型的类型（比如List&lt;Voucher&gt;），带泛型的类型只能存JSON。
+ */
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    @Autowired
+    private RedisLockNotifier lockNotifier;
+    @Autowired
+    private HotKeyDetector hotKeyDetector;
+    @Autowired
+    private CacheMetrics cacheMetrics;
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+    //热点key访问次数到达阈值（每个统计周期）后提前刷新
+    @Value("${hmdp.cache.hot-threshold:10}")
+    private long hotThreshold;
+    //逻辑过期前多久开始提前刷新，毫秒
+    @Value("${hmdp.cache.refresh-ahead:10000}")
+    private long refreshAheadMillis;
+    @Value("${hmdp.cache.max-tracked-keys:10000}")
+    private int maxTrackedKeys;
+    @Value("${hmdp.cache.rebuild-threads:4}")
+    private int rebuildThreads;
+    @Value("${hmdp.cache.rebuild-queue-size:1000}")
+    private int rebuildQueueSize;
+    private static final int HOT_KEY_IDLE_ROUNDS = 3;
+    private ThreadPoolExecutor rebuildExecutor;
+    //已经在重建队列里的key，用来去重
+    private final Set<String> rebuildingKeys = ConcurrentHashMap.newKeySet();
+    //逻辑过期模式下跟踪访问频率的key
+    private final Map<String, HotKey> hotKeys = new ConcurrentHashMap<>();
+    //json：缓存值都存JSON  binary：有编解码器的类型存二进制，读取时两种格式都支持
+    @Value("${hmdp.cache.codec:json}")
+    private String codecMode;
+    @Autowired(required = false)
+    private List<CacheCodec<?>> cacheCodecs = Collections.emptyList();
+    private final Map<Class<?>, CacheCodec<?>> codecs = new HashMap<>();
+    //二进制格式的首字节，JSON的UTF-8编码不会以这两个字节开头
+    private static final byte BINARY_VALUE = (byte) 0xB1;
+    //逻辑过期格式，带重建耗时
+    private static final byte BINARY_LOGICAL_VALUE = (byte) 0xB3;
+    //写入的过期时间随机增加0到这个比例，让同时写入的key分散过期
+    @Value("${hmdp.cache.ttl-jitter:0.1}")
+    private double ttlJitter;
+    //XFetch提前重建的系数，越大越早重建，0表示不提前
+    @Value("${hmdp.cache.xfetch-beta:1.0}")
+    private double xfetchBeta;
+    //一级缓存里代表数据不存在的占位对象
+    private static final Object NULL_VALUE = new Object();
+    //key前缀 -> 一级缓存
+    private final Map<String, Cache<String, Object>> localCaches = new ConcurrentHashMap<>();
+    //正在重建的key -> 重建结果，本节点同一个key同时只有一次重建
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        for (CacheCodec<?> codec : cacheCodecs) {
+            codecs.put(codec.type(), codec);
+        }
+        //有界队列，重建任务堆积时直接拒绝，不会无限占用内存
+        rebuildExecutor = new ThreadPoolExecutor(rebuildThreads, rebuildThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(rebuildQueueSize), r -> {
+                    Thread thread = new Thread(r, "cache-rebuild");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        cacheMetrics.gauge("hmdp_cache_rebuild_queue_depth", () -> rebuildExecutor.getQueue().size());
+        cacheMetrics.gauge("hmdp_cache_rebuild_active", () -> rebuildExecutor.getActiveCount());
+        cacheMetrics.gauge("hmdp_cache_inflight_loads", inFlight::size);
+        cacheMetrics.gauge("hmdp_cache_tracked_keys", hotKeys::size);
+    }
+
+    /**
+     * 给keyPrefix开启一级缓存
+     * @param maximumSize 最多缓存的key数量，超过后按访问频率淘汰
+     * @param time 写入后的过期时间
+     */
+    public void enableLocalCache(String keyPrefix, long maximumSize, Long time, TimeUnit unit) {
+        localCaches.put(keyPrefix, Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(time, unit)
+                .build());
+    }
+
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        setRaw(key, encode(value), time, unit);
+    }
+
+    /**
+     * 删除缓存，并通知所有节点清掉一级缓存
+     */
+    public <ID> void delete(String keyPrefix, ID id) {
+        String key = keyPrefix + id;
+        stringRedisTemplate.delete(key);
+        evictLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        evictLocal(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    private void evictLocal(String key) {
+        localCaches.forEach((keyPrefix, cache) -> {
+            if (key.startsWith(keyPrefix)) {
+                cache.invalidate(key);
+            }
+        });
+        hotKeyDetector.evict(key);
+    }
+
+    //一级缓存命中时返回对象，数据不存在时返回NULL_VALUE，没有命中返回null
+    //没有开启一级缓存的前缀，热点key也会在本地短暂缓存
+    //一级缓存命中只抽样统计热点，没有命中才逐次统计
+    private Object getLocal(String keyPrefix, String key) {
+        Cache<String, Object> cache = localCaches.get(keyPrefix);
+        Object local = cache == null ? null : cache.getIfPresent(key);
+        if (local != null) {
+            hotKeyDetector.sample(key);
+        } else if (hotKeyDetector.record(key)) {
+            local = hotKeyDetector.getPromoted(key);
+        }
+        if (local != null) {
+            cacheMetrics.record(keyPrefix, CacheMetrics.Outcome.LOCAL_HIT);
+        }
+        return local;
+    }
+
+    //查数据库并记录耗时
+    private <R,ID> R load(String keyPrefix, ID id, Function<ID,R> dbFallback) {
+        long start = System.nanoTime();
+        try {
+            return dbFallback.apply(id);
+        } finally {
+            cacheMetrics.load(keyPrefix, System.nanoTime() - start);
+        }
+    }
+
+    //Redis命中时记录是正常数据还是空值
+    private void recordHit(String keyPrefix, byte[] raw) {
+        cacheMetrics.record(keyPrefix, raw.length > 0 ? CacheMetrics.Outcome.HIT : CacheMetrics.Outcome.NULL_HIT);
+    }
+
+    private void putLocal(String keyPrefix, String key, Object value) {
+        Object local = value == null ? NULL_VALUE : value;
+        Cache<String, Object> cache = localCaches.get(keyPrefix);
+        if (cache != null) {
+            cache.put(key, local);
+        } else {
+            hotKeyDetector.promote(key, local);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <R> R fromLocal(Object local, Type type) {
+        return local == NULL_VALUE ? null : (R) local;
+    }
+
+    private byte[] getRaw(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.get(key.getBytes(StandardCharsets.UTF_8)));
     }
+
+    //time为null时不设置过期时间，否则加上随机抖动
+    private void setRaw(String key, byte[] value, Long time, TimeUnit unit) {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            setRaw(connection, key.getBytes(StandardCharsets.UTF_8), value, time, unit);
+            return null;
+        });
+    }
+
+    private void setRaw(RedisConnection connection, byte[] rawKey, byte[] value, Long time, TimeUnit unit) {
+        if (time == null) {
+            connection.set(rawKey, value);
+        } else {
+            connection.set(rawKey, value, Expiration.milliseconds(jitteredMillis(time, unit)), RedisStringCommands.SetOption.upsert());
+        }
+    }
+
+    private long jitteredMillis(Long time, TimeUnit unit) {
+        long millis = unit.toMillis(time);
+        return millis + (long) (millis * ttlJitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * XFetch：离逻辑过期越近、重建越慢，越有可能提前重建，
+     * 让同一批写入的key在过期前被不同的请求陆续刷新，而不是在同一时刻一起过期
+     * @param delta 上一次重建的耗时，毫秒
+     */
+    private boolean shouldRecomputeEarly(long expireAt, long delta) {
+        if (delta <= 0 || xfetchBeta <= 0) {
+            return false;
+        }
+        double gap = -delta * xfetchBeta * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        return System.currentTimeMillis() + gap >= expireAt;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R> CacheCodec<R> writeCodec(Object value) {
+        return "binary".equals(codecMode) ? (CacheCodec<R>) codecs.get(value.getClass()) : null;
+    }
+
+    //null编码成空串，作为缓存穿透的空值标记
+    private <R> byte[] encode(R value) {
+        if (value == null) {
+            return new byte[0];
+        }
+        CacheCodec<R> codec = writeCodec(value);
+        if (codec == null) {
+            return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] body = codec.encode(value);
+        byte[] raw = new byte[body.length + 1];
+        raw[0] = BINARY_VALUE;
+        System.arraycopy(body, 0, raw, 1, body.length);
+        return raw;
+    }
+
+    //raw不能是空值标记
+    @SuppressWarnings("unchecked")
+    private <R> R decode(byte[] raw, Type type) {
+        if (raw[0] == BINARY_VALUE) {
+            return ((CacheCodec<R>) requireCodec(type)).decode(raw, 1, raw.length - 1);
+        }
+        return JSONUtil.parse(new String(raw, StandardCharsets.UTF_8)).toBean(type);
+    }
+
+    private CacheCodec<?> requireCodec(Type type) {
+        CacheCodec<?> codec = type instanceof Class ? codecs.get(type) : null;
+        if (codec == null) {
+            throw new IllegalStateException("缓存是二进制格式，但是没有" + type.getTypeName() + "的编解码器");
+        }
+        return codec;
+    }
+
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
+        setWithLogicalExpire(key, value, time, unit, 0L);
+    }
+
+    /**
+     * @param delta 这次重建的耗时，毫秒，和数据一起保存，用于XFetch提前重建
+     * @return 逻辑过期时间，毫秒
+     */
+    private long setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, long delta){
+        long expireAt = System.currentTimeMillis() + jitteredMillis(time, unit);
+        CacheCodec<Object> codec = value == null ? null : writeCodec(value);
+        if (codec == null) {
+            RedisData redisData = new RedisData();
+            redisData.setData(value);
+            redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireAt), ZoneId.systemDefault()));
+            redisData.setDelta(delta);
+            setRaw(key, JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8), null, null);
+            return expireAt;
+        }
+        //二进制格式：首字节 + 8字节逻辑过期时间(毫秒) + 4字节重建耗时(毫秒) + 数据
+        byte[] body = codec.encode(value);
+        ByteBuffer raw = ByteBuffer.allocate(body.length + 13);
+        raw.put(BINARY_LOGICAL_VALUE)
+                .putLong(expireAt)
+                .putInt((int) Math.min(delta, Integer.MAX_VALUE))
+                .put(body);
+        setRaw(key, raw.array(), null, null);
+        return expireAt;
+    }
+
+    //读取逻辑过期的缓存，data转换成type
+    //不是逻辑过期格式时返回null，比如切换模式之前互斥锁模式写入的值和空值标记，按没有命中处理
+    @SuppressWarnings("unchecked")
+    private <R> RedisData decodeLogical(byte[] raw, Type type) {
+        if (raw.length == 0 || raw[0] == BINARY_VALUE) {
+            return null;
+        }
         RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(redisData));
+        if (raw[0] == BINARY_LOGICAL_VALUE) {
+            ByteBuffer buffer = ByteBuffer.wrap(raw);
+            buffer.get();
+            redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(buffer.getLong()), ZoneId.systemDefault()));
+            redisData.setDelta((long) buffer.getInt());
+            if (buffer.hasRemaining()) {
+                redisData.setData(((CacheCodec<R>) requireCodec(type)).decode(raw, buffer.position(), buffer.remaining()));
+            }
+            return redisData;
+        }
+        JSON parsed = JSONUtil.parse(new String(raw, StandardCharsets.UTF_8));
+        if (!(parsed instanceof JSONObject) || ((JSONObject) parsed).get("expireTime") == null) {
+            return null;
+        }
+        RedisData json = parsed.toBean(RedisData.class);
+        redisData.setExpireTime(json.getExpireTime());
+        redisData.setDelta(json.getDelta() == null ? 0L : json.getDelta());
+        if (json.getData() != null) {
+            redisData.setData(((JSON) json.getData()).toBean(type));
+        }
+        return redisData;
     }
 
     //解决缓存穿透问题
-    public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+    public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Type type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
-        if(StrUtil.isNotBlank(json)){
-            return JSONUtil.toBean(json,type);
+        Object local = getLocal(keyPrefix, key);
+        if (local != null) {
+            return fromLocal(local, type);
         }
-        if(json != null){
-            return null;
+        R r = queryRedisWithPassThrough(keyPrefix, id, type, dbFallback, time, unit);
+        putLocal(keyPrefix, key, r);
+        return r;
+    }
+
+    private <R,ID> R queryRedisWithPassThrough(String keyPrefix, ID id, Type type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+        byte[] raw = getRaw(key);
+        if(raw != null){
+            recordHit(keyPrefix, raw);
+        }
+        if(raw != null && raw.length > 0){
+            return decode(raw,type);
         }
-        R r = dbFallback.apply(id);
-        if(r == null){
-            //预防缓存穿透，防止数据库和Redis都不存在的大量数据访问打到数据库
-            //1、将不存在的数据访问数据库时，把键值对放在Redis，然后值设置成null
-            stringRedisTemplate.opsForValue().set(key,"",time,unit);
+        if(raw != null){
             return null;
         }
+        cacheMetrics.record(keyPrefix, CacheMetrics.Outcome.MISS);
+        R r = load(keyPrefix, id, dbFallback);
+        //预防缓存穿透，防止数据库和Redis都不存在的大量数据访问打到数据库
+        //1、将不存在的数据访问数据库时，把键值对放在Redis，然后值设置成空串
         set(key,r,time,unit);
         return r;
     }
 
-    //使用逻辑过期解决缓存击穿的问题
-    private <R,ID> R queryWithLogicalExpire(String keyPrefix,String lockKeyPrefix, ID id,Class<R> type,Function<ID,R> dbFallback, Long time, TimeUnit unit){
-        String key = keyPrefix +id;
-        String json = stringRedisTemplate.opsForValue().get(key);
-        if(StrUtil.isBlank(json)){
+    /**
+     * 批量查询：一级缓存没命中的key用一次MGET查Redis，Redis也没命中的id用一次批量查询查数据库，
+     * 查到的结果用pipeline一次写回Redis，数据库里没有的id写入空值防止穿透。
+     * @param dbBatchFallback 根据id批量查询数据库，返回id到数据的映射，不存在的id不用放进去
+     * @return 和ids顺序一一对应，不存在的数据为null
+     */
+    public <R,ID> List<R> queryBatch(String keyPrefix, List<ID> ids, Type type, Function<List<ID>, Map<ID, R>> dbBatchFallback, Long time, TimeUnit unit){
+        List<R> result = new ArrayList<>(Collections.nCopies(ids.size(), null));
+        //一级缓存
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            Object local = getLocal(keyPrefix, keyPrefix + ids.get(i));
+            if (local != null) {
+                result.set(i, fromLocal(local, type));
+            } else {
+                pending.add(i);
+            }
+        }
+        if (pending.isEmpty()) {
+            return result;
+        }
+        //Redis
+        byte[][] rawKeys = new byte[pending.size()][];
+        for (int j = 0; j < pending.size(); j++) {
+            rawKeys[j] = (keyPrefix + ids.get(pending.get(j))).getBytes(StandardCharsets.UTF_8);
+        }
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+        List<Integer> misses = new ArrayList<>();
+        Set<ID> missIds = new LinkedHashSet<>();
+        for (int j = 0; j < pending.size(); j++) {
+            int i = pending.get(j);
+            byte[] raw = values == null ? null : values.get(j);
+            if (raw == null) {
+                cacheMetrics.record(keyPrefix, CacheMetrics.Outcome.MISS);
+                misses.add(i);
+                missIds.add(ids.get(i));
+                continue;
+            }
+            recordHit(keyPrefix, raw);
+            R r = raw.length > 0 ? decode(raw, type) : null;
+            result.set(i, r);
+            putLocal(keyPrefix, keyPrefix + ids.get(i), r);
+        }
+        if (missIds.isEmpty()) {
+            return result;
+        }
+        //数据库
+        Map<ID, R> loaded = load(keyPrefix, new ArrayList<>(missIds), dbBatchFallback);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : missIds) {
+                setRaw(connection, (keyPrefix + id).getBytes(StandardCharsets.UTF_8), encode(loaded.get(id)), time, unit);
+            }
             return null;
+        });
+        for (int i : misses) {
+            R r = loaded.get(ids.get(i));
+            result.set(i, r);
+            putLocal(keyPrefix, keyPrefix + ids.get(i), r);
+        }
+        return result;
+    }
+
+    /**
+     * 使用逻辑过期解决缓存击穿的问题：过期后返回旧数据，由后台重建，请求不会阻塞在重建上。
+     * 同时统计每个key的访问次数，热点key在逻辑过期之前就由后台提前刷新。
+     */
+    @SuppressWarnings("unchecked")
+    public <R,ID> R queryWithLogicalExpire(String keyPrefix,String lockKeyPrefix, ID id,Type type,Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        String key = keyPrefix +id;
+        HotKey hot = trackAccess(key, () -> rebuildWithLogicalExpire(keyPrefix, lockKeyPrefix, id, dbFallback, time, unit));
+        Object local = getLocal(keyPrefix, key);
+        if (local != null) {
+            return fromLocal(local, type);
+        }
+        byte[] raw = getRaw(key);
+        RedisData redisData = raw == null ? null : decodeLogical(raw, type);
+        if(redisData == null){
+            //还没有缓存过，第一次加载，本节点单飞，各节点之间用重建锁互斥
+            cacheMetrics.record(keyPrefix, CacheMetrics.Outcome.MISS);
+            return loadWithLogicalExpire(keyPrefix, lockKeyPrefix, id, type, dbFallback, time, unit);
         }
-        String redisDateJson = stringRedisTemplate.opsForValue().get(key);
-        RedisData redisData = JSONUtil.toBean(redisDateJson, RedisData.class);
         R r = (R) redisData.getData();
-        if(redisData.getExpireTime().isAfter(LocalDateTime.now())){
+        long expireAt = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        if (hot != null) {
+            hot.expireAt = expireAt;
+        }
+        boolean fresh = expireAt > System.currentTimeMillis();
+        cacheMetrics.record(keyPrefix, fresh ? CacheMetrics.Outcome.HIT : CacheMetrics.Outcome.STALE);
+        if(fresh){
+            putLocal(keyPrefix, key, r);
+            if (!shouldRecomputeEarly(expireAt, redisData.getDelta())) {
+                return r;
+            }
+        }
+        submitRebuild(key, hot != null ? hot.rebuild
+                : () -> rebuildWithLogicalExpire(keyPrefix, lockKeyPrefix, id, dbFallback, time, unit));
+        return r;
+    }
+
+    private <R,ID> R loadWithLogicalExpire(String keyPrefix,String lockKeyPrefix, ID id,Type type,Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> leader = inFlight.putIfAbsent(key, flight);
+        try {
+            if (leader != null) {
+                cacheMetrics.record(keyPrefix, CacheMetrics.Outcome.COALESCED);
+                return fromLocal(awaitFlight(leader), type);
+            }
+            try {
+                R r = loadRedisWithLogicalExpire(keyPrefix, lockKeyPrefix, id, type, dbFallback, time, unit);
+                putLocal(keyPrefix, key, r);
+                flight.complete(r == null ? NULL_VALUE : r);
+                return r;
+            } catch (Throwable e) {
+                flight.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, flight);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待缓存加载时被中断，key=" + key, e);
+        }
+    }
+
+    //抢到重建锁的节点查数据库写缓存，其他节点等锁释放后直接读它写好的缓存
+    @SuppressWarnings("unchecked")
+    private <R,ID> R loadRedisWithLogicalExpire(String keyPrefix,String lockKeyPrefix, ID id,Type type,Function<ID,R> dbFallback, Long time, TimeUnit unit) throws InterruptedException {
+        String key = keyPrefix + id;
+        BlockingRedisLock lock = new BlockingRedisLock(lockKeyPrefix + id, stringRedisTemplate, lockNotifier);
+        if (!lock.tryLock(TimeUnit.SECONDS.toMillis(LOCK_SHOP_TTL), LOCK_SHOP_TTL)) {
+            log.warn("等待缓存重建超时，key={}", key);
+            return load(keyPrefix, id, dbFallback);
+        }
+        try {
+            byte[] raw = getRaw(key);
+            RedisData redisData = raw == null ? null : decodeLogical(raw, type);
+            if (redisData != null) {
+                return (R) redisData.getData();
+            }
+            long start = System.currentTimeMillis();
+            R r = load(keyPrefix, id, dbFallback);
+            long expireAt = setWithLogicalExpire(key,r,time,unit,System.currentTimeMillis() - start);
+            HotKey hot = hotKeys.get(key);
+            if (hot != null) {
+                hot.expireAt = expireAt;
+            }
             return r;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 逻辑过期模式下数据修改后调用：在重建锁下从数据库重新加载并覆盖缓存，然后通知所有节点清掉一级缓存。
+     * 不删除Redis里的缓存，修改之后的并发读不会因为没有命中而一起查数据库。
+     * 需要在修改数据的事务提交之后调用，否则可能加载到旧数据。
+     */
+    public <R,ID> void refreshWithLogicalExpire(String keyPrefix,String lockKeyPrefix, ID id,Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+        BlockingRedisLock lock = new BlockingRedisLock(lockKeyPrefix + id, stringRedisTemplate, lockNotifier);
+        boolean locked;
+        try {
+            locked = lock.tryLock(TimeUnit.SECONDS.toMillis(LOCK_SHOP_TTL), LOCK_SHOP_TTL);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            locked = false;
+        }
+        //等不到锁也要写，修改后的数据不能被丢掉
+        try {
+            long start = System.currentTimeMillis();
+            R r = load(keyPrefix, id, dbFallback);
+            long expireAt = setWithLogicalExpire(key,r,time,unit,System.currentTimeMillis() - start);
+            HotKey hot = hotKeys.get(key);
+            if (hot != null) {
+                hot.expireAt = expireAt;
+            }
+        } finally {
+            if (locked) {
+                lock.unlock();
+            }
         }
-        String lockKey = lockKeyPrefix +id;
-        boolean isLock = tryLock(lockKey);
-        if(isLock){
-            //开启独立线程，然后重建缓存
-            CACHE_REBUILD_EXECUTOR.submit(()->{
+        evictLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    private <R,ID> void rebuildWithLogicalExpire(String keyPrefix,String lockKeyPrefix, ID id,Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+        //其他节点正在重建就不用再查一次数据库了
+        BlockingRedisLock lock = new BlockingRedisLock(lockKeyPrefix + id, stringRedisTemplate, lockNotifier);
+        if(!lock.tryLock(LOCK_SHOP_TTL)){
+            return;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            R r = load(keyPrefix, id, dbFallback);
+            long expireAt = setWithLogicalExpire(key,r,time,unit,System.currentTimeMillis() - start);
+            putLocal(keyPrefix, key, r);
+            HotKey hot = hotKeys.get(key);
+            if (hot != null) {
+                hot.expireAt = expireAt;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //记录一次访问，跟踪的key太多时不再跟踪新key
+    private HotKey trackAccess(String key, Runnable rebuild) {
+        HotKey hot = hotKeys.get(key);
+        if (hot == null) {
+            if (hotKeys.size() >= maxTrackedKeys) {
+                return null;
+            }
+            hot = hotKeys.computeIfAbsent(key, k -> new HotKey(rebuild));
+        }
+        hot.hits.increment();
+        return hot;
+    }
+
+    /**
+     * 定期检查跟踪的key：上一个周期访问次数达到阈值、并且快要逻辑过期的key提前刷新，
+     * 连续几个周期没有访问的key不再跟踪
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.refresh-interval:1000}")
+    public void refreshHotKeys() {
+        long now = System.currentTimeMillis();
+        hotKeys.forEach((key, hot) -> {
+            long hits = hot.hits.sumThenReset();
+            if (hits == 0) {
+                if (++hot.idleRounds >= HOT_KEY_IDLE_ROUNDS) {
+                    hotKeys.remove(key, hot);
+                }
+                return;
+            }
+            hot.idleRounds = 0;
+            if (hits >= hotThreshold && hot.expireAt - now <= refreshAheadMillis) {
+                submitRebuild(key, hot.rebuild);
+            }
+        });
+    }
+
+    //同一个key在重建队列里只会有一个任务，队列满了直接放弃，下次访问或者下个周期再提交
+    private void submitRebuild(String key, Runnable rebuild) {
+        if (!rebuildingKeys.add(key)) {
+            return;
+        }
+        try {
+            rebuildExecutor.execute(() -> {
                 try {
-                    R r1 = dbFallback.apply(id);
-                    setWithLogicalExpire(key,r1,time,unit);
+                    rebuild.run();
+                } catch (Exception e) {
+                    log.error("重建缓存失败，key={}", key, e);
                 } finally {
-                    releaseLock(lockKey);
+                    rebuildingKeys.remove(key);
                 }
             });
+        } catch (RejectedExecutionException e) {
+            cacheMetrics.increment("hmdp_cache_rebuild_rejected_total");
+            rebuildingKeys.remove(key);
+            log.warn("缓存重建队列已满，key={}", key);
+        }
+    }
+
+    private static class HotKey {
+        private final LongAdder hits = new LongAdder();
+        private final Runnable rebuild;
+        //最近一次看到的逻辑过期时间
+        private volatile long expireAt = Long.MAX_VALUE;
+        //只在定时任务线程里读写
+        private int idleRounds;
+
+        private HotKey(Runnable rebuild) {
+            this.rebuild = rebuild;
         }
-        return r;
     }
 
-    //使用Redis互斥锁解决缓存击穿问题
-    public  <R,ID> R queryWithMutex(String keyPrefix,String lockKeyPrefix, ID id,Class<R> type,Function<ID,R> dbFallback, Long time, TimeUnit unit) throws InterruptedException {
+    //使用Redis互斥锁解决缓存击穿问题，time是缓存的过期时间，空值标记最多缓存CACHE_NULL_TTL分钟
+    public  <R,ID> R queryWithMutex(String keyPrefix,String lockKeyPrefix, ID id,Type type,Function<ID,R> dbFallback, Long time, TimeUnit unit) throws InterruptedException {
         String key = keyPrefix + id;
-        //访问缓存
-        String CacheStr = queryRedis(key);
-        if (StrUtil.isNotBlank(CacheStr)) {
-            return JSONUtil.toBean(CacheStr,type);
+        Object local = getLocal(keyPrefix, key);
+        if (local != null) {
+            return fromLocal(local, type);
         }
-        if(CacheStr != null){
-            return null;
+        //同一个key在本节点只有一个线程去Redis抢锁重建，其他线程等它的结果
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            cacheMetrics.record(keyPrefix, CacheMetrics.Outcome.COALESCED);
+            return fromLocal(awaitFlight(leader), type);
         }
-        R rCache = null;
+        try {
+            R r = queryRedisWithMutex(keyPrefix, lockKeyPrefix, id, type, dbFallback, time, unit);
+            putLocal(keyPrefix, key, r);
+            flight.complete(r == null ? NULL_VALUE : r);
+            return r;
+        } catch (Throwable e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    private Object awaitFlight(CompletableFuture<Object> leader) throws InterruptedException {
+        try {
+            return leader.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private <R,ID> R queryRedisWithMutex(String keyPrefix,String lockKeyPrefix, ID id,Type type,Function<ID,R> dbFallback, Long time, TimeUnit unit) throws InterruptedException {
+        String key = keyPrefix + id;
+        //访问缓存
+        byte[] raw = getRaw(key);
+        if (raw != null) {
+            recordHit(keyPrefix, raw);
+            return raw.length > 0 ? decode(raw,type) : null;
+        }
+        cacheMetrics.record(keyPrefix, CacheMetrics.Outcome.MISS);
         //判断缓存是否命中
-        //如果没有命中尝试获取锁
-        String lockKey = lockKeyPrefix + id;
+        //如果没有命中尝试获取锁，没抢到锁的线程等锁释放的通知，最多等锁的过期时间
+        BlockingRedisLock lock = new BlockingRedisLock(lockKeyPrefix + id, stringRedisTemplate, lockNotifier);
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LOCK_SHOP_TTL);
         while(true){
-            if(tryLock(lockKey)){
+            if(lock.tryLock(LOCK_SHOP_TTL)){
                 try {
                     // 获取锁后，再次检查缓存，避免更新缓存时已被其他请求处理
-                    if(StrUtil.isNotBlank(CacheStr = queryRedis(key))){
-                        rCache = JSONUtil.toBean(CacheStr,type);
+                    raw = getRaw(key);
+                    if (raw != null) {
+                        return raw.length > 0 ? decode(raw,type) : null;
                     }
+                    R rCache = load(keyPrefix, id, dbFallback);
                     if(rCache != null){
-                        break;
-                    }
-                    rCache = dbFallback.apply(id);
-                    if(rCache != null){
-                        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(rCache));
+                        setRaw(key,encode(rCache),time,unit);
                     }else {
-                        set(key,"",time,TimeUnit.MINUTES);
+                        //空值标记不超过CACHE_NULL_TTL，数据新增后很快就能查到
+                        long ttlMillis = Math.min(unit.toMillis(time), TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL));
+                        set(key,null,ttlMillis,TimeUnit.MILLISECONDS);
                     }
+                    return rCache;
                 } finally {
-                    releaseLock(lockKey);
+                    lock.unlock();
                 }
-                break;
             }
-            Thread.sleep(50);
-            rCache = JSONUtil.toBean(queryRedis(key),type);
-            if(rCache != null){
-                break;
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                //等太久了，说明重建很慢或者锁没有正常释放，直接查数据库
+                log.warn("等待缓存重建超时，key={}", key);
+                return load(keyPrefix, id, dbFallback);
+            }
+            cacheMetrics.lockWait(keyPrefix);
+            lock.awaitUnlock(remaining);
+            raw = getRaw(key);
+            if (raw != null) {
+                return raw.length > 0 ? decode(raw,type) : null;
             }
         }
-        return rCache;
-    }
-    private String queryRedis(String key){
-        return stringRedisTemplate.opsForValue().get(key);
-    }
-    private boolean tryLock(String key){
-        return Boolean.TRUE.equals(stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS));
-    }
-    private void releaseLock(String key) {
-        stringRedisTemplate.delete(key);
     }
 }
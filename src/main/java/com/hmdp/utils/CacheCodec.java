@@ -0,0 +1,13 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码器，注册为Spring Bean后CacheClient会自动使用。
+ * 没有编解码器的类型仍然按JSON存储。
+ */
+public interface CacheCodec<T> {
+    Class<T> type();
+
+    byte[] encode(T value);
+
+    T decode(byte[] data, int offset, int length);
+}
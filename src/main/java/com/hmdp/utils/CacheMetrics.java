@@ -0,0 +1,125 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * CacheClient的运行指标，按key前缀统计。
+ * 计数器都是LongAdder，高并发下也不会在同一个变量上竞争；
+ * 加载耗时用固定分桶的直方图，输出Prometheus文本格式。
+ */
+@Component
+public class CacheMetrics {
+    public enum Outcome {
+        //一级缓存或者热点缓存命中
+        LOCAL_HIT,
+        //Redis命中
+        HIT,
+        //命中了缓存穿透的空值
+        NULL_HIT,
+        //逻辑过期后返回了旧数据
+        STALE,
+        //等待本节点其他线程的加载结果
+        COALESCED,
+        //没有命中，需要查数据库
+        MISS
+    }
+
+    //加载耗时分桶的上界，秒
+    private static final double[] BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5};
+
+    private final Map<String, PrefixMetrics> prefixes = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    public void record(String keyPrefix, Outcome outcome) {
+        metrics(keyPrefix).outcomes[outcome.ordinal()].increment();
+    }
+
+    public void lockWait(String keyPrefix) {
+        metrics(keyPrefix).lockWaits.increment();
+    }
+
+    /**
+     * 记录一次查数据库重建缓存的耗时
+     */
+    public void load(String keyPrefix, long nanos) {
+        PrefixMetrics m = metrics(keyPrefix);
+        double seconds = nanos / 1e9;
+        int i = 0;
+        while (i < BUCKETS.length && seconds > BUCKETS[i]) {
+            i++;
+        }
+        m.buckets[i].increment();
+        m.loadNanos.add(nanos);
+    }
+
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public void increment(String name) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).increment();
+    }
+
+    private PrefixMetrics metrics(String keyPrefix) {
+        PrefixMetrics m = prefixes.get(keyPrefix);
+        return m != null ? m : prefixes.computeIfAbsent(keyPrefix, k -> new PrefixMetrics());
+    }
+
+    /**
+     * Prometheus文本格式
+     */
+    public String scrape() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# TYPE hmdp_cache_requests_total counter\n");
+        prefixes.forEach((prefix, m) -> {
+            for (Outcome outcome : Outcome.values()) {
+                sb.append("hmdp_cache_requests_total{prefix=\"").append(prefix)
+                        .append("\",outcome=\"").append(outcome.name().toLowerCase()).append("\"} ")
+                        .append(m.outcomes[outcome.ordinal()].sum()).append('\n');
+            }
+        });
+        sb.append("# TYPE hmdp_cache_lock_waits_total counter\n");
+        prefixes.forEach((prefix, m) -> sb.append("hmdp_cache_lock_waits_total{prefix=\"").append(prefix).append("\"} ")
+                .append(m.lockWaits.sum()).append('\n'));
+        sb.append("# TYPE hmdp_cache_load_seconds histogram\n");
+        prefixes.forEach((prefix, m) -> {
+            long cumulative = 0;
+            for (int i = 0; i <= BUCKETS.length; i++) {
+                cumulative += m.buckets[i].sum();
+                sb.append("hmdp_cache_load_seconds_bucket{prefix=\"").append(prefix).append("\",le=\"")
+                        .append(i < BUCKETS.length ? String.valueOf(BUCKETS[i]) : "+Inf").append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            sb.append("hmdp_cache_load_seconds_sum{prefix=\"").append(prefix).append("\"} ")
+                    .append(m.loadNanos.sum() / 1e9).append('\n');
+            sb.append("hmdp_cache_load_seconds_count{prefix=\"").append(prefix).append("\"} ")
+                    .append(cumulative).append('\n');
+        });
+        counters.forEach((name, value) -> sb.append("# TYPE ").append(name).append(" counter\n")
+                .append(name).append(' ').append(value.sum()).append('\n'));
+        gauges.forEach((name, value) -> sb.append("# TYPE ").append(name).append(" gauge\n")
+                .append(name).append(' ').append(value.getAsLong()).append('\n'));
+        return sb.toString();
+    }
+
+    private static class PrefixMetrics {
+        private final LongAdder[] outcomes = adders(Outcome.values().length);
+        private final LongAdder lockWaits = new LongAdder();
+        private final LongAdder[] buckets = adders(BUCKETS.length + 1);
+        private final LongAdder loadNanos = new LongAdder();
+
+        private static LongAdder[] adders(int n) {
+            LongAdder[] adders = new LongAdder[n];
+            for (int i = 0; i < n; i++) {
+                adders[i] = new LongAdder();
+            }
+            return adders;
+        }
+    }
+}
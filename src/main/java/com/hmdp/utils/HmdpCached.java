@@ -0,0 +1,43 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 方法返回值通过CacheClient缓存，缓存没有命中时才执行方法。
+ * 缓存key = keyPrefix + key，key是SpEL表达式，比如"#id"、"#voucher.shopId"，
+ * 不写时把所有参数用冒号拼接起来。
+ * 方法必须通过Spring代理调用，同一个类里直接调用不会走缓存。
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface HmdpCached {
+    String keyPrefix();
+
+    String key() default "";
+
+    Strategy strategy() default Strategy.PASS_THROUGH;
+
+    long ttl();
+
+    TimeUnit unit() default TimeUnit.MINUTES;
+
+    /**
+     * 互斥锁和逻辑过期模式的锁前缀，不写时为"lock:" + keyPrefix
+     */
+    String lockKeyPrefix() default "";
+
+    enum Strategy {
+        //缓存空值防止穿透
+        PASS_THROUGH,
+        //互斥锁重建，防止击穿
+        MUTEX,
+        //逻辑过期，后台重建，返回旧数据
+        LOGICAL_EXPIRE
+    }
+}
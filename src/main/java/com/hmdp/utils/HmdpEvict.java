@@ -0,0 +1,21 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 方法执行成功后删除缓存，并通知所有节点清掉本地缓存。
+ * 和@Transactional一起使用时在事务提交之后才删除。
+ * key的写法和HmdpCached相同。
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface HmdpEvict {
+    String keyPrefix();
+
+    String key() default "";
+}
@@ -0,0 +1,164 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 热点key探测：用滑动窗口的count-min sketch统计每个key最近一段时间的访问次数，
+ * 窗口分成若干个时间片，每个时间片一个sketch，定时轮转清掉最老的一片。
+ * 访问次数超过阈值的key进入热点集合，它的值在本地缓存很短的时间，挡住打到同一个Redis分片的流量。
+ * 热点key的访问次数降到阈值一半以下才移出热点集合，避免在阈值附近来回抖动。
+ */
+@Component
+public class HotKeyDetector {
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1 << 12;
+    private static final int[] SEEDS = {0x5bd1e995, 0x1b873593, 0xcc9e2d51, 0x27d4eb2f};
+
+    //一个窗口内访问次数达到这个值算热点
+    @Value("${hmdp.cache.hot-key.threshold:1000}")
+    private int threshold;
+    @Value("${hmdp.cache.hot-key.window-slices:10}")
+    private int windowSlices;
+    //热点key在本地缓存的时间，毫秒
+    @Value("${hmdp.cache.hot-key.local-ttl:3000}")
+    private long localTtl;
+    @Value("${hmdp.cache.hot-key.max-hot-keys:1000}")
+    private int maxHotKeys;
+    //一级缓存命中时每多少次访问抽样记录一次
+    @Value("${hmdp.cache.hot-key.sample-rate:16}")
+    private int sampleRate;
+
+    private AtomicIntegerArray[] slices;
+    private volatile int current;
+    //热点key -> 最近一次估计的访问次数
+    private final Map<String, Integer> hotKeys = new ConcurrentHashMap<>();
+    private Cache<String, Object> promoted;
+
+    @PostConstruct
+    public void init() {
+        slices = new AtomicIntegerArray[windowSlices];
+        for (int i = 0; i < windowSlices; i++) {
+            slices[i] = new AtomicIntegerArray(DEPTH * WIDTH);
+        }
+        promoted = Caffeine.newBuilder()
+                .maximumSize(maxHotKeys)
+                .expireAfterWrite(localTtl, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * 记录一次访问
+     * @return key当前是否是热点
+     */
+    public boolean record(String key) {
+        return record(key, 1);
+    }
+
+    /**
+     * 按sample-rate抽样记录一次访问，抽中时按sample-rate次计数，估计的访问次数和逐次记录差不多。
+     * 一级缓存命中的访问量最大，逐次记录的开销比命中本身还高
+     */
+    public void sample(String key) {
+        if (sampleRate <= 1) {
+            record(key, 1);
+        } else if (ThreadLocalRandom.current().nextInt(sampleRate) == 0) {
+            record(key, sampleRate);
+        }
+    }
+
+    private boolean record(String key, int weight) {
+        AtomicIntegerArray slice = slices[current];
+        int hash = key.hashCode();
+        for (int row = 0; row < DEPTH; row++) {
+            slice.addAndGet(index(row, hash), weight);
+        }
+        if (hotKeys.containsKey(key)) {
+            return true;
+        }
+        int count = estimate(hash);
+        if (count < threshold || hotKeys.size() >= maxHotKeys) {
+            return false;
+        }
+        hotKeys.put(key, count);
+        return true;
+    }
+
+    public Object getPromoted(String key) {
+        return promoted.getIfPresent(key);
+    }
+
+    //只缓存热点key的值
+    public void promote(String key, Object value) {
+        if (hotKeys.containsKey(key)) {
+            promoted.put(key, value);
+        }
+    }
+
+    public void evict(String key) {
+        promoted.invalidate(key);
+    }
+
+    /**
+     * 当前的热点key和估计的访问次数，按访问次数从高到低
+     */
+    public Map<String, Integer> hotKeys() {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        hotKeys.entrySet().stream()
+                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+                .forEach(e -> result.put(e.getKey(), e.getValue()));
+        return result;
+    }
+
+    /**
+     * 每个时间片轮转一次：清空最老的时间片作为新的当前时间片，重新估计热点key的访问次数
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.hot-key.slice-interval:1000}")
+    public void rotate() {
+        int next = (current + 1) % slices.length;
+        AtomicIntegerArray slice = slices[next];
+        for (int i = 0; i < slice.length(); i++) {
+            slice.set(i, 0);
+        }
+        current = next;
+        hotKeys.replaceAll((key, count) -> estimate(key.hashCode()));
+        hotKeys.entrySet().removeIf(e -> {
+            if (e.getValue() < threshold / 2) {
+                promoted.invalidate(e.getKey());
+                return true;
+            }
+            return false;
+        });
+    }
+
+    //所有时间片里每一行取对应计数器之和，再取各行的最小值
+    private int estimate(int hash) {
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = index(row, hash);
+            int sum = 0;
+            for (AtomicIntegerArray slice : slices) {
+                sum += slice.get(index);
+            }
+            min = Math.min(min, sum);
+        }
+        return min;
+    }
+
+    private static int index(int row, int hash) {
+        int h = (hash ^ SEEDS[row]) * 0x9E3779B1;
+        h ^= h >>> 16;
+        return row * WIDTH + (h & (WIDTH - 1));
+    }
+}
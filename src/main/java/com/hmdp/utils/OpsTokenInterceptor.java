@@ -0,0 +1,36 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * 运维接口（缓存指标、热点key）的访问控制，Prometheus之类的抓取端没有用户登录态，
+ * 改为校验请求头Authorization: Bearer <hmdp.ops.token>。没有配置token时拒绝所有请求。
+ */
+@Component
+public class OpsTokenInterceptor implements HandlerInterceptor {
+    private static final String BEARER = "Bearer ";
+
+    @Value("${hmdp.ops.token:}")
+    private String token;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        String header = request.getHeader("Authorization");
+        if (StrUtil.isBlank(token) || header == null || !header.startsWith(BEARER)
+                //按固定时间比较，不通过耗时泄露token
+                || !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                header.substring(BEARER.length()).trim().getBytes(StandardCharsets.UTF_8))) {
+            response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+            return false;
+        }
+        return true;
+    }
+}
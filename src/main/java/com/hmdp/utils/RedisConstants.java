@@ -10,13 +10,47 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:dto:";
+    public static final String CACHE_VOUCHER_LIST_KEY = "cache:voucher:shop:";
+    public static final String CACHE_USER_INFO_KEY = "cache:user:info:";
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final String CACHE_SHOP_TYPE_KEY = "shopType";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_SHOP_TYPE_IDS_KEY = "lock:shop:type:ids:";
+    public static final String LOCK_RELEASED_CHANNEL = "lock:released";
+    public static final Long LOCK_ORDER_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    //数据库拒绝的订单，留给人工核对
+    public static final String SECKILL_ORDER_DEAD_STREAM = "stream.orders.dead";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    //每次补货加一，售罄和补货消息按它排序
+    public static final String SECKILL_EPOCH_KEY = "seckill:epoch:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final Long SECKILL_VOUCHER_TTL = 24L;
+
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final Long ID_WORKER_TTL = 60L;
+
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_GEO_CHANNEL = "shop:geo:changed";
+    public static final String SHOP_NAME_CHANNEL = "shop:name:changed";
+    public static final String SHOP_TYPE_IDS_KEY = "shop:type:ids:";
+    public static final Long SHOP_TYPE_IDS_TTL = 30L;
+    public static final String SHOP_COUNTER_KEY = "shop:counter:";
+    //待写回集合和写回中集合放在同一个slot，才能用SMOVE在两者之间移动
+    public static final String SHOP_COUNTER_DIRTY_KEY = "shop:counter:{dirty}";
+    public static final String SHOP_COUNTER_PROCESSING_KEY = "shop:counter:{dirty}:processing";
+    public static final Long SHOP_COUNTER_TOTAL_TTL = 24L;
     public static final String USER_SIGN_KEY = "sign:";
 }
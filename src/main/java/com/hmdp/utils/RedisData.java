@@ -8,4 +8,6 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data;
+    //上一次重建缓存的耗时，毫秒
+    private Long delta;
 }
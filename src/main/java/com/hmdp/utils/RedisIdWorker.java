@@ -2,32 +2,152 @@ package com.hmdp.utils;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.stereotype.Component;
 
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Component
 @Slf4j
 public class RedisIdWorker {
     private static final long BEGIN_TIMESTAMP = 1704067200L;
     private static final int COUNT_BITS = 32;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    //号段剩余不到20%时异步预取下一个号段
+    private static final double PREFETCH_RATIO = 0.8;
+    private static final ExecutorService SEGMENT_PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private SnowflakeIdWorker snowflakeIdWorker;
+    //counter：每个id都INCR一次  segment：每次用INCRBY租一段序号，在本地发放  snowflake：本地雪花算法
+    @Value("${hmdp.id.mode:counter}")
+    private String mode;
+    @Value("${hmdp.id.segment-step:1000}")
+    private long segmentStep;
+
+    private final Map<String, SegmentBuffer> segmentBuffers = new ConcurrentHashMap<>();
+    private volatile DateCache dateCache = new DateCache(-1, null);
 
     public Long nextId(String keyPrefix){
+        if ("snowflake".equals(mode)) {
+            return snowflakeIdWorker.nextId();
+        }
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = currentDate(nowSecond, now);
+        if ("segment".equals(mode)) {
+            return timestamp << COUNT_BITS | nextSequence(keyPrefix, date);
+        }
         Long increment = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
         if (increment == null) {
             increment = 0L;
         }
         return timestamp << COUNT_BITS | increment;
     }
+
+    //日期字符串一天只格式化一次
+    private String currentDate(long nowSecond, LocalDateTime now) {
+        long day = nowSecond / 86400;
+        DateCache cache = dateCache;
+        if (cache.day != day) {
+            cache = new DateCache(day, now.format(DATE_FORMATTER));
+            dateCache = cache;
+        }
+        return cache.date;
+    }
+
+    private long nextSequence(String keyPrefix, String date) {
+        SegmentBuffer buffer = segmentBuffers.computeIfAbsent(keyPrefix, k -> new SegmentBuffer());
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment != null && segment.date.equals(date)) {
+                long seq = segment.next.getAndIncrement();
+                if (seq <= segment.max) {
+                    if (seq >= segment.prefetchAt) {
+                        prefetch(keyPrefix, buffer, date);
+                    }
+                    return seq;
+                }
+            }
+            //当前号段用完了或者跨天了，切换号段只能有一个线程来做
+            synchronized (buffer) {
+                if (buffer.current != segment) {
+                    continue;
+                }
+                Segment next = buffer.next;
+                buffer.next = null;
+                buffer.current = next != null && next.date.equals(date) ? next : fetchSegment(keyPrefix, date);
+            }
+        }
+    }
+
+    private void prefetch(String keyPrefix, SegmentBuffer buffer, String date) {
+        if (buffer.next != null || !buffer.loading.compareAndSet(false, true)) {
+            return;
+        }
+        SEGMENT_PREFETCH_EXECUTOR.execute(() -> {
+            try {
+                buffer.next = fetchSegment(keyPrefix, date);
+            } catch (Exception e) {
+                //预取失败不影响发号，号段用完时会同步再取一次
+                log.error("预取id号段失败，keyPrefix={}", keyPrefix, e);
+            } finally {
+                buffer.loading.set(false);
+            }
+        });
+    }
+
+    private Segment fetchSegment(String keyPrefix, String date) {
+        Long max = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, segmentStep);
+        if (max == null) {
+            throw new IllegalStateException("获取id号段失败");
+        }
+        return new Segment(date, max - segmentStep + 1, max, (long) (max - segmentStep * (1 - PREFETCH_RATIO)));
+    }
+
+    private static class SegmentBuffer {
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean(false);
+    }
+
+    private static class Segment {
+        private final String date;
+        private final AtomicLong next;
+        private final long max;
+        private final long prefetchAt;
+
+        private Segment(String date, long start, long max, long prefetchAt) {
+            this.date = date;
+            this.next = new AtomicLong(start);
+            this.max = max;
+            this.prefetchAt = prefetchAt;
+        }
+    }
+
+    private static class DateCache {
+        private final long day;
+        private final String date;
+
+        private DateCache(long day, String date) {
+            this.day = day;
+            this.date = date;
+        }
+    }
 }
@@ -0,0 +1,94 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOCK_RELEASED_CHANNEL;
+
+/**
+ * 锁释放通知：解锁脚本往LOCK_RELEASED_CHANNEL发布锁的key，
+ * 本节点等待这把锁的线程被立即唤醒，不用再sleep轮询。
+ * 等待时间不会超过锁剩余的过期时间，锁过期没有通知也能醒过来。
+ */
+@Component
+public class RedisLockNotifier implements MessageListener {
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    //锁的key -> 等待者，没有线程等待时移除
+    private final Map<String, Waiters> waiters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(LOCK_RELEASED_CHANNEL));
+    }
+
+    /**
+     * 先登记为等待者，拿到等待句柄后再尝试加锁，这样加锁失败之后发生的释放不会被错过
+     */
+    public Waiters subscribe(String lockKey) {
+        return waiters.compute(lockKey, (k, w) -> {
+            if (w == null) {
+                w = new Waiters();
+            }
+            w.count++;
+            return w;
+        });
+    }
+
+    public void unsubscribe(String lockKey) {
+        waiters.computeIfPresent(lockKey, (k, w) -> --w.count == 0 ? null : w);
+    }
+
+    /**
+     * 等待锁被释放，最多等maxWaitMillis毫秒，也不会超过锁剩余的过期时间
+     * @return 是否收到了释放通知或者锁已经不存在
+     */
+    public boolean await(String lockKey, CountDownLatch latch, long maxWaitMillis) throws InterruptedException {
+        Long ttl = stringRedisTemplate.getExpire(lockKey, TimeUnit.MILLISECONDS);
+        if (ttl != null && ttl == -2) {
+            //锁已经不在了
+            return true;
+        }
+        long waitMillis = ttl != null && ttl > 0 ? Math.min(ttl, maxWaitMillis) : maxWaitMillis;
+        return latch.await(waitMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        Waiters w = waiters.get(new String(message.getBody(), StandardCharsets.UTF_8));
+        if (w != null) {
+            w.signal();
+        }
+    }
+
+    public static class Waiters {
+        private int count;
+        private volatile CountDownLatch latch = new CountDownLatch(1);
+
+        //每次等待前取当前的latch，释放时换一个新的latch并唤醒所有等在旧latch上的线程
+        public CountDownLatch latch() {
+            return latch;
+        }
+
+        private synchronized void signal() {
+            CountDownLatch old = latch;
+            latch = new CountDownLatch(1);
+            old.countDown();
+        }
+    }
+}
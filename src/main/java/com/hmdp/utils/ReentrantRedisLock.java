@@ -0,0 +1,112 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于hash的可重入Redis锁，field是持有者标识，value是重入次数。
+ * 持有者标识在加锁时按当前线程生成，同一个线程可以重复加锁，解锁次数和加锁次数相同才真正释放。
+ * 加锁成功后看门狗每隔过期时间的1/3续期一次，业务没执行完锁不会过期；
+ * 节点挂了没有续期，锁在过期时间后自动释放，所以过期时间可以设得很短。
+ */
+@Slf4j
+public class ReentrantRedisLock implements ILock {
+    private static final String KEY_PREFIX = "lock:";
+    private static final String ID_PREFIX = UUID.randomUUID() + "-";
+    private static final DefaultRedisScript<Long> LOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    static {
+        LOCK_SCRIPT = script("script/reentrant_lock.lua");
+        UNLOCK_SCRIPT = script("script/reentrant_unlock.lua");
+        RENEW_SCRIPT = script("script/reentrant_renew.lua");
+    }
+    private static final ScheduledExecutorService WATCHDOG_EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "redis-lock-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    //锁的key + 持有者 -> 看门狗任务，重入时不重复创建
+    private static final Map<String, ScheduledFuture<?>> WATCHDOGS = new ConcurrentHashMap<>();
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String lockKey;
+
+    public ReentrantRedisLock(String lockName, StringRedisTemplate stringRedisTemplate) {
+        this.lockKey = KEY_PREFIX + lockName;
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * @param timeoutSec 锁的租期，持有期间由看门狗不断续期
+     */
+    @Override
+    public Boolean tryLock(Long timeoutSec) {
+        String owner = currentOwner();
+        String leaseMillis = String.valueOf(TimeUnit.SECONDS.toMillis(timeoutSec));
+        Long r = stringRedisTemplate.execute(LOCK_SCRIPT, Collections.singletonList(lockKey), owner, leaseMillis);
+        if (r == null || r != 1) {
+            return false;
+        }
+        WATCHDOGS.computeIfAbsent(lockKey + "|" + owner, k -> {
+            long period = Math.max(TimeUnit.SECONDS.toMillis(timeoutSec) / 3, 1);
+            return WATCHDOG_EXECUTOR.scheduleWithFixedDelay(
+                    () -> renew(owner, leaseMillis), period, period, TimeUnit.MILLISECONDS);
+        });
+        return true;
+    }
+
+    @Override
+    public void unlock() {
+        String owner = currentOwner();
+        //还有重入没释放时过期时间交给看门狗维护
+        Long r = stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(lockKey),
+                owner, RedisConstants.LOCK_RELEASED_CHANNEL);
+        if (r == null || r != 0) {
+            //已经释放，或者锁早就不属于自己了，都不需要再续期
+            cancelWatchdog(owner);
+        }
+    }
+
+    private void renew(String owner, String leaseMillis) {
+        try {
+            Long r = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(lockKey), owner, leaseMillis);
+            if (r == null || r == 0) {
+                log.warn("锁{}已经不属于当前持有者，停止续期", lockKey);
+                cancelWatchdog(owner);
+            }
+        } catch (Exception e) {
+            //Redis暂时不可用，下一轮再试，租期内恢复就不会丢锁
+            log.error("锁{}续期失败", lockKey, e);
+        }
+    }
+
+    private void cancelWatchdog(String owner) {
+        ScheduledFuture<?> watchdog = WATCHDOGS.remove(lockKey + "|" + owner);
+        if (watchdog != null) {
+            watchdog.cancel(false);
+        }
+    }
+
+    private static String currentOwner() {
+        return ID_PREFIX + Thread.currentThread().getId();
+    }
+
+    private static DefaultRedisScript<Long> script(String location) {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource(location));
+        script.setResultType(Long.class);
+        return script;
+    }
+}
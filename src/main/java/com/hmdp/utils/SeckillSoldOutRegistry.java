@@ -0,0 +1,122 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_EPOCH_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 本地售罄标记：优惠券第一次卖完时在本地打标记，并通过Redis发布订阅通知其他节点，
+ * 之后的请求在JVM内直接拒绝，不再访问Redis和数据库。
+ * 每个优惠券在Redis里有一个补货版本号，每次补货加一。消息格式为 "1:优惠券id:版本号"（售罄）
+ * 或 "0:优惠券id:版本号"（补货），售罄消息带的是判断售罄之前看到的版本号，
+ * 比已知的补货版本号旧就忽略，不依赖各节点的时钟。
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry implements MessageListener {
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    //优惠券id -> 售罄时的版本号
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+    //优惠券id -> 已知的最新补货版本号，第一次用到时从Redis读取
+    private final Map<Long, Long> epochs = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        return soldOut.containsKey(voucherId);
+    }
+
+    /**
+     * 当前已知的补货版本号，要在判断库存之前取，判断出售罄后传给markSoldOut
+     */
+    public long epoch(Long voucherId) {
+        Long epoch = epochs.get(voucherId);
+        if (epoch != null) {
+            return epoch;
+        }
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_EPOCH_KEY + voucherId);
+        //读Redis期间可能已经收到了更新的补货消息，取较大的
+        return epochs.merge(voucherId, value == null ? 0L : Long.parseLong(value), Math::max);
+    }
+
+    /**
+     * 库存判断和补货并发时，用判断之前的版本号做标记，补货消息会把它清掉
+     */
+    public void markSoldOut(Long voucherId, long epoch) {
+        if (applySoldOut(voucherId, epoch)) {
+            publish("1", voucherId, epoch);
+        }
+    }
+
+    /**
+     * 补货之后调用：版本号加一，清掉各节点在这之前打的售罄标记
+     */
+    public void reset(Long voucherId) {
+        Long epoch = stringRedisTemplate.opsForValue().increment(SECKILL_EPOCH_KEY + voucherId);
+        if (epoch == null) {
+            return;
+        }
+        applyReset(voucherId, epoch);
+        publish("0", voucherId, epoch);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":");
+        if (parts.length != 3) {
+            log.warn("无法识别的售罄消息：{}", message);
+            return;
+        }
+        Long voucherId = Long.valueOf(parts[1]);
+        long epoch = Long.parseLong(parts[2]);
+        if ("1".equals(parts[0])) {
+            applySoldOut(voucherId, epoch);
+        } else {
+            applyReset(voucherId, epoch);
+        }
+    }
+
+    private boolean applySoldOut(Long voucherId, long epoch) {
+        if (epoch < epoch(voucherId)) {
+            return false;
+        }
+        if (soldOut.putIfAbsent(voucherId, epoch) != null) {
+            return false;
+        }
+        //检查和打标记之间可能刚好收到补货消息
+        if (epoch < epochs.get(voucherId)) {
+            soldOut.remove(voucherId, epoch);
+            return false;
+        }
+        return true;
+    }
+
+    private void applyReset(Long voucherId, long epoch) {
+        epochs.merge(voucherId, epoch, Math::max);
+        soldOut.computeIfPresent(voucherId, (k, soldOutEpoch) -> soldOutEpoch < epoch ? null : soldOutEpoch);
+    }
+
+    private void publish(String flag, Long voucherId, long epoch) {
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, flag + ":" + voucherId + ":" + epoch);
+    }
+}
@@ -0,0 +1,234 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 秒杀库存在Redis里的扣减。
+ * 库存可以拆成多个分片（hmdp.seckill.stock-shards），用户按id哈希到自己的分片，
+ * 自己的分片卖完了再去兄弟分片扣，所有分片都空了才算售罄。
+ * 分片库存和分片已购集合用同一个hash tag，集群下落在同一个slot。
+ * 异步下单时订单消息在扣库存的同一个脚本里写入队列，和不分片的脚本一样，要求队列和库存在同一个Redis节点上。
+ */
+@Slf4j
+@Component
+public class SeckillStockManager {
+    public static final long SUCCESS = 0L;
+    public static final long SOLD_OUT = 1L;
+    public static final long DUPLICATE = 2L;
+    public static final long NOT_LOADED = 3L;
+
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> STEAL_SCRIPT;
+    private static final DefaultRedisScript<Long> ROLLBACK_SCRIPT;
+    private static final DefaultRedisScript<Long> LOAD_SCRIPT;
+    private static final DefaultRedisScript<Long> RESTOCK_SCRIPT;
+    static {
+        SECKILL_SCRIPT = script("script/seckill.lua");
+        SHARD_SCRIPT = script("script/seckill_shard.lua");
+        STEAL_SCRIPT = script("script/seckill_steal.lua");
+        ROLLBACK_SCRIPT = script("script/seckill_rollback.lua");
+        LOAD_SCRIPT = script("script/seckill_load.lua");
+        RESTOCK_SCRIPT = script("script/seckill_restock.lua");
+    }
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+
+    //优惠券的分片数加载后不会再变，缓存在本地，避免每次秒杀多查一次Redis
+    private final Map<Long, Integer> shardCounts = new ConcurrentHashMap<>();
+
+    /**
+     * 新增秒杀券时把库存按配置的分片数加载到Redis
+     */
+    public void load(Long voucherId, int stock) {
+        load(voucherId, stock, stockShards);
+    }
+
+    /**
+     * 数据库补货提交之后，把补的数量加到Redis库存上，分片时按加载时的规则分给各个分片。
+     * 用增量而不是直接覆盖，队列里还没落库的订单已经扣过Redis库存，覆盖会让它们在数据库里再扣一次。
+     * 还没加载到Redis的库存不用处理，第一次秒杀时会从数据库加载补货之后的库存
+     */
+    public void restock(Long voucherId, int amount) {
+        String value = stringRedisTemplate.opsForValue().get(shardCountKey(voucherId));
+        if (value == null) {
+            return;
+        }
+        int shards = Integer.parseInt(value);
+        if (shards == 1) {
+            stringRedisTemplate.execute(RESTOCK_SCRIPT,
+                    Collections.singletonList(SECKILL_STOCK_KEY + voucherId), String.valueOf(amount));
+            return;
+        }
+        for (int i = 0; i < shards; i++) {
+            int share = amount / shards + (i < amount % shards ? 1 : 0);
+            if (share > 0) {
+                stringRedisTemplate.execute(RESTOCK_SCRIPT,
+                        Collections.singletonList(shardStockKey(voucherId, i)), String.valueOf(share));
+            }
+        }
+    }
+
+    /**
+     * 扣减库存并记录购买资格
+     * @param async 为true时抢购成功的订单写入消息队列
+     * @param orderId 写入消息队列的订单id，不是异步下单时传null
+     * @param dbStock 库存还没加载到Redis时从数据库读取库存
+     * @return SUCCESS、SOLD_OUT、DUPLICATE、NOT_LOADED
+     */
+    public long acquire(Long voucherId, Long userId, Long orderId, boolean async, Supplier<Integer> dbStock) {
+        for (int i = 0; i < 2; i++) {
+            int shards = shardCount(voucherId);
+            long r = shards > 1
+                    ? acquireSharded(voucherId, userId, orderId, async, shards)
+                    : acquireSingle(voucherId, userId, orderId, async);
+            if (r != NOT_LOADED) {
+                return r;
+            }
+            //库存还没有预热到Redis，用数据库库存初始化一次；布局已经确定时按已有的布局补齐缺的key
+            load(voucherId, dbStock.get(), stockShards);
+        }
+        return NOT_LOADED;
+    }
+
+    /**
+     * 订单没能落库时归还库存和购买资格
+     * @return 是否真的归还了库存
+     */
+    public boolean release(Long voucherId, Long userId) {
+        int shards = shardCount(voucherId);
+        List<String> keys = shards > 1
+                ? Arrays.asList(shardStockKey(voucherId, homeShard(userId, shards)), shardOrderKey(voucherId, homeShard(userId, shards)))
+                : Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId);
+        Long r = stringRedisTemplate.execute(ROLLBACK_SCRIPT, keys, userId.toString());
+        return r != null && r == 1;
+    }
+
+    private long acquireSingle(Long voucherId, Long userId, Long orderId, boolean async) {
+        List<String> keys = async
+                ? Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId, SECKILL_ORDER_STREAM)
+                : Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId);
+        Long r = async
+                ? stringRedisTemplate.execute(SECKILL_SCRIPT, keys, userId.toString(), voucherId.toString(), orderId.toString())
+                : stringRedisTemplate.execute(SECKILL_SCRIPT, keys, userId.toString(), voucherId.toString());
+        return r == null ? -1L : r;
+    }
+
+    private long acquireSharded(Long voucherId, Long userId, Long orderId, boolean async, int shards) {
+        int home = homeShard(userId, shards);
+        String orderKey = shardOrderKey(voucherId, home);
+        //扣减成功的那个脚本同时写消息队列，不会出现扣了库存却没有订单消息的情况
+        Object[] args = async
+                ? new Object[]{userId.toString(), voucherId.toString(), orderId.toString()}
+                : new Object[]{userId.toString()};
+        List<String> keys = async
+                ? Arrays.asList(shardStockKey(voucherId, home), orderKey, SECKILL_ORDER_STREAM)
+                : Arrays.asList(shardStockKey(voucherId, home), orderKey);
+        Long r = stringRedisTemplate.execute(SHARD_SCRIPT, keys, args);
+        if (r == null) {
+            return -1L;
+        }
+        if (r != SOLD_OUT) {
+            return r;
+        }
+        //自己的分片卖完了，购买资格已经预占，依次去兄弟分片扣库存
+        boolean allLoaded = true;
+        for (int i = 1; i < shards; i++) {
+            String stockKey = shardStockKey(voucherId, (home + i) % shards);
+            List<String> stealKeys = async
+                    ? Arrays.asList(stockKey, SECKILL_ORDER_STREAM)
+                    : Collections.singletonList(stockKey);
+            Long stolen = stringRedisTemplate.execute(STEAL_SCRIPT, stealKeys, args);
+            if (stolen != null && stolen == 1) {
+                return SUCCESS;
+            }
+            if (stolen != null && stolen == NOT_LOADED) {
+                allLoaded = false;
+            }
+        }
+        //撤销预占的购买资格；有分片还没加载完时不能算售罄，加载后再试
+        stringRedisTemplate.opsForSet().remove(orderKey, userId.toString());
+        return allLoaded ? SOLD_OUT : NOT_LOADED;
+    }
+
+    /**
+     * 先用脚本原子地决定分片数，分片数只会写入一次，所有节点都按同一种布局加载，不会既有不分片的库存又有分片库存。
+     * 分片在不同的slot里，只能在布局确定后逐个setIfAbsent；还没写完的分片扣减时返回NOT_LOADED，
+     * 调用方会再加载一次补上缺的分片
+     */
+    private void load(Long voucherId, int stock, int shards) {
+        Long layout = stringRedisTemplate.execute(LOAD_SCRIPT,
+                Collections.singletonList(shardCountKey(voucherId)), String.valueOf(shards));
+        int actual = layout == null ? shards : layout.intValue();
+        shardCounts.put(voucherId, actual);
+        if (actual == 1) {
+            if (Boolean.TRUE.equals(stringRedisTemplate.opsForValue().setIfAbsent(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock)))) {
+                log.debug("优惠券{}的库存{}已加载到Redis", voucherId, stock);
+            }
+            return;
+        }
+        for (int i = 0; i < actual; i++) {
+            //余数分给前面的分片
+            String value = String.valueOf(stock / actual + (i < stock % actual ? 1 : 0));
+            stringRedisTemplate.opsForValue().setIfAbsent(shardStockKey(voucherId, i), value);
+        }
+        log.debug("优惠券{}的库存{}已加载到Redis，分片数{}", voucherId, stock, actual);
+    }
+
+    private int shardCount(Long voucherId) {
+        Integer shards = shardCounts.get(voucherId);
+        if (shards == null) {
+            String value = stringRedisTemplate.opsForValue().get(shardCountKey(voucherId));
+            if (value == null) {
+                //还没有加载过，先按不分片扣减，返回NOT_LOADED后由load决定布局，这里不缓存
+                return 1;
+            }
+            shards = Integer.parseInt(value);
+            shardCounts.put(voucherId, shards);
+        }
+        return shards;
+    }
+
+    private static int homeShard(Long userId, int shards) {
+        return Math.floorMod(userId.hashCode(), shards);
+    }
+
+    private static String shardCountKey(Long voucherId) {
+        return SECKILL_STOCK_KEY + voucherId + ":shards";
+    }
+
+    private static String shardStockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    private static String shardOrderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    private static DefaultRedisScript<Long> script(String location) {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource(location));
+        script.setResultType(Long.class);
+        return script;
+    }
+}
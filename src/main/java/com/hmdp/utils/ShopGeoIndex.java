@@ -0,0 +1,405 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_CHANNEL;
+
+/**
+ * 店铺坐标的本地网格索引，按类型分开，附近店铺查询不用再访问Redis。
+ * 经纬度按固定的度数切成网格，同一个类型的店铺按网格排好序存在几个基本类型数组里，
+ * 查询时从所在网格开始一圈一圈往外找，找够数量并且外圈不可能更近时停止。
+ * 每个类型的网格是不可变的，修改店铺时复制一份改好再替换，查询不需要加锁。
+ * 加载完成之前isReady返回false，由Redis GEO兜底。
+ */
+@Component
+public class ShopGeoIndex extends ShopIndex {
+    //和Redis GEO使用相同的地球半径，两边算出来的距离一致
+    private static final double EARTH_RADIUS = 6372797.560856;
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180;
+
+    //网格边长，度
+    @Value("${hmdp.shop.grid-cell:0.01}")
+    private double cell;
+
+    //类型id -> 网格
+    private final Map<Long, Grid> grids = new ConcurrentHashMap<>();
+    //店铺id -> 类型id，修改店铺时找到原来所在的网格
+    private final Map<Long, Long> shopTypes = new ConcurrentHashMap<>();
+
+    public ShopGeoIndex() {
+        super(SHOP_GEO_CHANNEL, "店铺网格索引", "附近店铺查询使用Redis GEO");
+    }
+
+    @Override
+    protected Builder newBuilder() {
+        Map<Long, Points> byType = new HashMap<>();
+        return new Builder() {
+            @Override
+            public void add(Shop shop) {
+                if (shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+                    byType.computeIfAbsent(shop.getTypeId(), k -> new Points()).add(shop.getId(), shop.getX(), shop.getY());
+                    shopTypes.put(shop.getId(), shop.getTypeId());
+                }
+            }
+
+            @Override
+            public void finish() {
+                byType.forEach((typeId, points) -> grids.put(typeId, build(points)));
+            }
+        };
+    }
+
+    @Override
+    protected Shop indexed(Shop shop) {
+        if (shop.getId() == null || shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+            return null;
+        }
+        return shop;
+    }
+
+    @Override
+    protected String toMessage(Shop shop) {
+        return shop.getId() + ":" + shop.getTypeId() + ":" + shop.getX() + ":" + shop.getY();
+    }
+
+    @Override
+    protected Shop fromMessage(String message) {
+        String[] parts = message.split(":");
+        Shop shop = new Shop();
+        shop.setId(Long.valueOf(parts[0]));
+        shop.setTypeId(Long.valueOf(parts[1]));
+        shop.setX(Double.valueOf(parts[2]));
+        shop.setY(Double.valueOf(parts[3]));
+        return shop;
+    }
+
+    @Override
+    protected void apply(Shop shop) {
+        Long id = shop.getId();
+        Long oldType = shopTypes.put(id, shop.getTypeId());
+        if (oldType != null) {
+            Grid old = grids.get(oldType);
+            if (old != null) {
+                grids.put(oldType, old.remove(id));
+            }
+        }
+        Grid grid = grids.get(shop.getTypeId());
+        if (grid == null) {
+            grid = build(new Points());
+        }
+        long key = cellKey((long) Math.floor(shop.getX() / cell), (long) Math.floor(shop.getY() / cell));
+        grids.put(shop.getTypeId(), grid.insert(id, shop.getX(), shop.getY(), key));
+    }
+
+    /**
+     * 查询一个类型在radius米以内离(x, y)最近的limit个店铺，按距离由近到远排列
+     */
+    public Nearby nearest(Long typeId, double x, double y, double radius, int limit) {
+        return nearest(typeId, x, y, radius, -1, 0, limit);
+    }
+
+    /**
+     * 按(距离, id)滚动查询，只保留排在游标之后的店铺，堆的大小始终是一页，和翻到第几页无关
+     * @param lastDistance 上一页最后一个店铺的距离，第一页传-1
+     * @param lastId 上一页最后一个店铺的id
+     */
+    public Nearby nearest(Long typeId, double x, double y, double radius, double lastDistance, long lastId, int limit) {
+        Grid grid = grids.get(typeId);
+        if (grid == null || limit <= 0) {
+            return new Nearby(new long[0], new double[0], 0);
+        }
+        //大顶堆保存目前最近的limit个店铺，堆顶是其中最远的
+        long[] heapIds = new long[limit];
+        double[] heapDistances = new double[limit];
+        int size = 0;
+        long cx = (long) Math.floor(x / cell);
+        long cy = (long) Math.floor(y / cell);
+        //经度方向的网格宽度随纬度变小，取两个方向里较短的一边估算外圈的最近距离
+        double cellMeters = cell * METERS_PER_DEGREE * Math.min(1, Math.cos(Math.toRadians(Math.min(Math.abs(y) + cell, 90))));
+        int maxRing = (int) Math.ceil(radius / Math.max(cellMeters, 1)) + 1;
+        for (int ring = 0; ring <= maxRing; ring++) {
+            double ringMin = Math.max(ring - 1, 0) * cellMeters;
+            if (ringMin > radius || (size == limit && ringMin > heapDistances[0])) {
+                break;
+            }
+            for (long gx = cx - ring; gx <= cx + ring; gx++) {
+                //只访问这一圈的网格：上下两行全部，中间的行只取左右两端
+                long step = gx == cx - ring || gx == cx + ring ? 1 : Math.max(2L * ring, 1);
+                for (long gy = cy - ring; gy <= cy + ring; gy += step) {
+                    int c = Arrays.binarySearch(grid.cellKeys, cellKey(gx, gy));
+                    if (c < 0) {
+                        continue;
+                    }
+                    for (int i = grid.cellStart[c]; i < grid.cellStart[c + 1]; i++) {
+                        double d = distance(x, y, grid.xs[i], grid.ys[i]);
+                        if (d > radius || !after(d, grid.ids[i], lastDistance, lastId)) {
+                            continue;
+                        }
+                        if (size < limit) {
+                            heapIds[size] = grid.ids[i];
+                            heapDistances[size] = d;
+                            siftUp(heapIds, heapDistances, size++);
+                        } else if (after(heapDistances[0], heapIds[0], d, grid.ids[i])) {
+                            heapIds[0] = grid.ids[i];
+                            heapDistances[0] = d;
+                            siftDown(heapIds, heapDistances, size);
+                        }
+                    }
+                }
+            }
+        }
+        //依次取出堆顶，从后往前填，得到由近到远的顺序
+        for (int n = size - 1; n > 0; n--) {
+            swap(heapIds, heapDistances, 0, n);
+            siftDown(heapIds, heapDistances, n);
+        }
+        return new Nearby(heapIds, heapDistances, size);
+    }
+
+    private Grid build(Points points) {
+        int n = points.size;
+        long[] keys = new long[n];
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = cellKey((long) Math.floor(points.xs[i] / cell), (long) Math.floor(points.ys[i] / cell));
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+        long[] ids = new long[n];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        long[] cellKeys = new long[n];
+        int[] cellStart = new int[n + 1];
+        int cells = 0;
+        for (int i = 0; i < n; i++) {
+            int j = order[i];
+            ids[i] = points.ids[j];
+            xs[i] = points.xs[j];
+            ys[i] = points.ys[j];
+            if (cells == 0 || cellKeys[cells - 1] != keys[j]) {
+                cellKeys[cells] = keys[j];
+                cellStart[cells++] = i;
+            }
+        }
+        cellStart[cells] = n;
+        return new Grid(ids, xs, ys, Arrays.copyOf(cellKeys, cells), Arrays.copyOf(cellStart, cells + 1));
+    }
+
+    private static long cellKey(long gx, long gy) {
+        return (gx << 32) | (gy & 0xFFFFFFFFL);
+    }
+
+    static double distance(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+
+    //(d1, id1)是否排在(d2, id2)后面，距离相同的按id排序，翻页时不会重复或者漏掉
+    private static boolean after(double d1, long id1, double d2, long id2) {
+        return d1 > d2 || (d1 == d2 && id1 > id2);
+    }
+
+    private static void siftUp(long[] ids, double[] distances, int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!after(distances[i], ids[i], distances[parent], ids[parent])) {
+                return;
+            }
+            swap(ids, distances, parent, i);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(long[] ids, double[] distances, int size) {
+        int i = 0;
+        while (true) {
+            int largest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && after(distances[left], ids[left], distances[largest], ids[largest])) {
+                largest = left;
+            }
+            if (right < size && after(distances[right], ids[right], distances[largest], ids[largest])) {
+                largest = right;
+            }
+            if (largest == i) {
+                return;
+            }
+            swap(ids, distances, i, largest);
+            i = largest;
+        }
+    }
+
+    private static void swap(long[] ids, double[] distances, int i, int j) {
+        long id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+        double d = distances[i];
+        distances[i] = distances[j];
+        distances[j] = d;
+    }
+
+    /**
+     * 查询结果，前size个有效
+     */
+    public static class Nearby {
+        public final long[] ids;
+        public final double[] distances;
+        public final int size;
+
+        Nearby(long[] ids, double[] distances, int size) {
+            this.ids = ids;
+            this.distances = distances;
+            this.size = size;
+        }
+    }
+
+    /**
+     * 一个类型的店铺，按网格排序，cellKeys[c]网格里的店铺下标是[cellStart[c], cellStart[c + 1])。
+     * 修改店铺时只在所在网格的位置插入或删除一个元素，后面网格的起始下标整体加减一，
+     * 复制数组是O(n)，不需要重新排序；数组复制一份再替换，查询不需要加锁
+     */
+    private static class Grid {
+        private final long[] ids;
+        private final double[] xs;
+        private final double[] ys;
+        private final long[] cellKeys;
+        private final int[] cellStart;
+
+        Grid(long[] ids, double[] xs, double[] ys, long[] cellKeys, int[] cellStart) {
+            this.ids = ids;
+            this.xs = xs;
+            this.ys = ys;
+            this.cellKeys = cellKeys;
+            this.cellStart = cellStart;
+        }
+
+        /**
+         * @return 去掉id之后的网格，不存在时返回自己
+         */
+        Grid remove(long id) {
+            int i = 0;
+            while (i < ids.length && ids[i] != id) {
+                i++;
+            }
+            if (i == ids.length) {
+                return this;
+            }
+            int n = ids.length - 1;
+            long[] newIds = new long[n];
+            double[] newXs = new double[n];
+            double[] newYs = new double[n];
+            removeAt(ids, newIds, i);
+            removeAt(xs, newXs, i);
+            removeAt(ys, newYs, i);
+            //i所在的网格，没有空网格，起始下标严格递增
+            int c = Arrays.binarySearch(cellStart, i);
+            if (c < 0) {
+                c = -c - 2;
+            }
+            int cells = cellKeys.length;
+            if (cellStart[c + 1] - cellStart[c] > 1) {
+                int[] newStart = cellStart.clone();
+                for (int k = c + 1; k <= cells; k++) {
+                    newStart[k]--;
+                }
+                return new Grid(newIds, newXs, newYs, cellKeys, newStart);
+            }
+            //网格里只有这一个店铺，网格也一起删掉
+            long[] newKeys = new long[cells - 1];
+            System.arraycopy(cellKeys, 0, newKeys, 0, c);
+            System.arraycopy(cellKeys, c + 1, newKeys, c, cells - c - 1);
+            int[] newStart = new int[cells];
+            System.arraycopy(cellStart, 0, newStart, 0, c);
+            for (int k = c; k < cells; k++) {
+                newStart[k] = cellStart[k + 1] - 1;
+            }
+            return new Grid(newIds, newXs, newYs, newKeys, newStart);
+        }
+
+        /**
+         * @return 在key网格末尾加入店铺之后的网格
+         */
+        Grid insert(long id, double x, double y, long key) {
+            int cells = cellKeys.length;
+            int c = Arrays.binarySearch(cellKeys, key);
+            long[] newKeys = cellKeys;
+            int[] newStart;
+            int pos;
+            if (c >= 0) {
+                pos = cellStart[c + 1];
+                newStart = cellStart.clone();
+                for (int k = c + 1; k <= cells; k++) {
+                    newStart[k]++;
+                }
+            } else {
+                //新的网格
+                c = -c - 1;
+                pos = cellStart[c];
+                newKeys = new long[cells + 1];
+                System.arraycopy(cellKeys, 0, newKeys, 0, c);
+                newKeys[c] = key;
+                System.arraycopy(cellKeys, c, newKeys, c + 1, cells - c);
+                newStart = new int[cells + 2];
+                System.arraycopy(cellStart, 0, newStart, 0, c);
+                newStart[c] = pos;
+                for (int k = c; k <= cells; k++) {
+                    newStart[k + 1] = cellStart[k] + 1;
+                }
+            }
+            int n = ids.length + 1;
+            long[] newIds = new long[n];
+            double[] newXs = new double[n];
+            double[] newYs = new double[n];
+            System.arraycopy(ids, 0, newIds, 0, pos);
+            System.arraycopy(ids, pos, newIds, pos + 1, ids.length - pos);
+            System.arraycopy(xs, 0, newXs, 0, pos);
+            System.arraycopy(xs, pos, newXs, pos + 1, xs.length - pos);
+            System.arraycopy(ys, 0, newYs, 0, pos);
+            System.arraycopy(ys, pos, newYs, pos + 1, ys.length - pos);
+            newIds[pos] = id;
+            newXs[pos] = x;
+            newYs[pos] = y;
+            return new Grid(newIds, newXs, newYs, newKeys, newStart);
+        }
+
+        private static void removeAt(long[] from, long[] to, int i) {
+            System.arraycopy(from, 0, to, 0, i);
+            System.arraycopy(from, i + 1, to, i, from.length - i - 1);
+        }
+
+        private static void removeAt(double[] from, double[] to, int i) {
+            System.arraycopy(from, 0, to, 0, i);
+            System.arraycopy(from, i + 1, to, i, from.length - i - 1);
+        }
+    }
+
+    private static class Points {
+        private long[] ids = new long[16];
+        private double[] xs = new double[16];
+        private double[] ys = new double[16];
+        private int size;
+
+        void add(long id, double x, double y) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                xs = Arrays.copyOf(xs, size * 2);
+                ys = Arrays.copyOf(ys, size * 2);
+            }
+            ids[size] = id;
+            xs[size] = x;
+            ys[size] = y;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiFunction;
+
+/**
+ * 店铺本地索引的公共部分：启动后在后台线程按id分页从表里加载，加载完成之前isReady返回false，由调用方兜底；
+ * 加载期间收到的修改先暂存，加载完成后再应用；店铺变化通过发布订阅同步到所有节点。
+ * 子类只负责索引本身的结构。
+ */
+@Slf4j
+public abstract class ShopIndex implements MessageListener {
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+    @Value("${hmdp.shop.index.page-size:1000}")
+    private int pageSize;
+
+    private final String channel;
+    private final String name;
+    private final String fallback;
+    //加载期间收到的修改，加载完成后再应用
+    private List<Shop> pending = new ArrayList<>();
+    private volatile boolean ready;
+
+    /**
+     * @param channel 同步修改的频道
+     * @param name 日志里的索引名称
+     * @param fallback 加载失败时日志里说明的兜底方式
+     */
+    protected ShopIndex(String channel, String name, String fallback) {
+        this.channel = channel;
+        this.name = name;
+        this.fallback = fallback;
+    }
+
+    @PostConstruct
+    public void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(channel));
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 在后台线程加载所有店铺
+     * @param pageLoader 参数是上一页最后一个id和每页大小，按id升序返回下一页店铺
+     */
+    public void load(BiFunction<Long, Integer, List<Shop>> pageLoader) {
+        Thread thread = new Thread(() -> {
+            try {
+                loadNow(pageLoader);
+            } catch (Exception e) {
+                log.error("{}加载失败，{}", name, fallback, e);
+            }
+        }, "shop-index-load-" + getClass().getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void loadNow(BiFunction<Long, Integer, List<Shop>> pageLoader) {
+        Builder builder = newBuilder();
+        long lastId = 0;
+        int count = 0;
+        while (true) {
+            List<Shop> shops = pageLoader.apply(lastId, pageSize);
+            for (Shop shop : shops) {
+                builder.add(shop);
+                lastId = shop.getId();
+            }
+            count += shops.size();
+            if (shops.size() < pageSize) {
+                break;
+            }
+        }
+        builder.finish();
+        synchronized (this) {
+            pending.forEach(this::apply);
+            pending = null;
+            ready = true;
+        }
+        log.info("{}加载完成，共{}个店铺", name, count);
+    }
+
+    /**
+     * 新增或修改店铺后调用，通知所有节点
+     */
+    public void put(Shop shop) {
+        Shop indexed = indexed(shop);
+        if (indexed == null) {
+            return;
+        }
+        putLocal(indexed);
+        stringRedisTemplate.convertAndSend(channel, toMessage(indexed));
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        putLocal(fromMessage(new String(message.getBody(), StandardCharsets.UTF_8)));
+    }
+
+    synchronized void putLocal(Shop shop) {
+        if (pending != null) {
+            pending.add(shop);
+            return;
+        }
+        apply(shop);
+    }
+
+    /**
+     * 加载时使用的构建器，店铺按id升序依次传入
+     */
+    protected abstract Builder newBuilder();
+
+    /**
+     * 加载完成后把一个店铺的修改应用到索引上，调用时已经持有索引的锁
+     */
+    protected abstract void apply(Shop shop);
+
+    /**
+     * 取出建索引需要的字段
+     * @return 店铺不需要建索引时返回null
+     */
+    protected abstract Shop indexed(Shop shop);
+
+    protected abstract String toMessage(Shop shop);
+
+    protected abstract Shop fromMessage(String message);
+
+    protected interface Builder {
+        void add(Shop shop);
+
+        void finish();
+    }
+}
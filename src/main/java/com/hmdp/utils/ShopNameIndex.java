@@ -0,0 +1,322 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SHOP_NAME_CHANNEL;
+
+/**
+ * 店铺名称、商圈、地址的本地倒排索引，替代LIKE '%name%'的全表扫描。
+ * 文本按单字和相邻两个字切成gram，每个gram对应一个按id升序的倒排表，倒排表存的是id差值的变长编码。
+ * 查询时取所有gram倒排表的交集作为候选，再用原文确认确实包含关键字，
+ * 按命中的字段（名称 > 商圈 > 地址）和命中位置排序。
+ * 加载完成之前isReady返回false，由数据库查询兜底。
+ */
+@Component
+public class ShopNameIndex extends ShopIndex {
+    //gram -> 压缩的倒排表
+    private final Map<String, byte[]> postings = new ConcurrentHashMap<>();
+    //店铺id -> 建索引的原文，用来确认命中、排序以及修改时删除旧的gram
+    private final Map<Long, Doc> docs = new ConcurrentHashMap<>();
+
+    public ShopNameIndex() {
+        super(SHOP_NAME_CHANNEL, "店铺名称索引", "名称搜索使用数据库查询");
+    }
+
+    @Override
+    protected Builder newBuilder() {
+        //按id升序加载，每个gram的id直接追加到末尾，最后统一压缩
+        Map<String, long[]> building = new HashMap<>();
+        Map<String, Integer> sizes = new HashMap<>();
+        return new Builder() {
+            @Override
+            public void add(Shop shop) {
+                Doc doc = new Doc(shop);
+                docs.put(shop.getId(), doc);
+                for (String gram : doc.grams()) {
+                    int size = sizes.getOrDefault(gram, 0);
+                    long[] ids = building.computeIfAbsent(gram, k -> new long[4]);
+                    if (size == ids.length) {
+                        ids = Arrays.copyOf(ids, size * 2);
+                        building.put(gram, ids);
+                    }
+                    ids[size] = shop.getId();
+                    sizes.put(gram, size + 1);
+                }
+            }
+
+            @Override
+            public void finish() {
+                building.forEach((gram, ids) -> postings.put(gram, encode(ids, sizes.get(gram))));
+            }
+        };
+    }
+
+    @Override
+    protected Shop indexed(Shop shop) {
+        if (shop.getId() == null) {
+            return null;
+        }
+        Shop indexed = new Shop();
+        indexed.setId(shop.getId());
+        indexed.setName(shop.getName());
+        indexed.setArea(shop.getArea());
+        indexed.setAddress(shop.getAddress());
+        return indexed;
+    }
+
+    @Override
+    protected String toMessage(Shop shop) {
+        return JSONUtil.toJsonStr(shop);
+    }
+
+    @Override
+    protected Shop fromMessage(String message) {
+        return JSONUtil.toBean(message, Shop.class);
+    }
+
+    @Override
+    protected void apply(Shop shop) {
+        long id = shop.getId();
+        Doc doc = new Doc(shop);
+        Doc old = docs.put(id, doc);
+        Set<String> removed = old == null ? Collections.emptySet() : new LinkedHashSet<>(old.grams());
+        Set<String> added = doc.grams();
+        for (String gram : removed) {
+            if (!added.contains(gram)) {
+                byte[] posting = postings.get(gram);
+                if (posting != null) {
+                    long[] ids = decode(posting);
+                    int i = Arrays.binarySearch(ids, id);
+                    if (i >= 0) {
+                        long[] rest = new long[ids.length - 1];
+                        System.arraycopy(ids, 0, rest, 0, i);
+                        System.arraycopy(ids, i + 1, rest, i, ids.length - i - 1);
+                        if (rest.length == 0) {
+                            postings.remove(gram);
+                        } else {
+                            postings.put(gram, encode(rest, rest.length));
+                        }
+                    }
+                }
+            }
+        }
+        for (String gram : added) {
+            if (!removed.contains(gram)) {
+                byte[] posting = postings.get(gram);
+                long[] ids = posting == null ? new long[0] : decode(posting);
+                int i = Arrays.binarySearch(ids, id);
+                if (i < 0) {
+                    i = -i - 1;
+                    long[] more = new long[ids.length + 1];
+                    System.arraycopy(ids, 0, more, 0, i);
+                    more[i] = id;
+                    System.arraycopy(ids, i, more, i + 1, ids.length - i);
+                    postings.put(gram, encode(more, more.length));
+                }
+            }
+        }
+    }
+
+    /**
+     * 按关键字搜索店铺
+     * @return 排好序的第from个开始最多size个店铺id
+     */
+    public List<Long> search(String keyword, int from, int size) {
+        List<long[]> hits = rank(keyword);
+        List<Long> ids = new ArrayList<>(size);
+        for (int i = from; i < hits.size() && ids.size() < size; i++) {
+            ids.add(hits.get(i)[1]);
+        }
+        return ids;
+    }
+
+    /**
+     * 按关键字滚动搜索，排序键是(分数, id)，从上一页最后一个店铺之后开始
+     * @return 最多size个{分数, 店铺id}
+     */
+    public List<long[]> searchAfter(String keyword, long lastScore, long lastId, int size) {
+        List<long[]> hits = rank(keyword);
+        //hits按(分数, id)升序，二分找到第一个大于游标的位置
+        int lo = 0;
+        int hi = hits.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long[] hit = hits.get(mid);
+            if (hit[0] < lastScore || (hit[0] == lastScore && hit[1] <= lastId)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return new ArrayList<>(hits.subList(lo, Math.min(lo + size, hits.size())));
+    }
+
+    /**
+     * @return 命中的{分数, 店铺id}，按分数和id升序
+     */
+    private List<long[]> rank(String keyword) {
+        String query = Doc.normalize(keyword);
+        if (query.isEmpty()) {
+            return Collections.emptyList();
+        }
+        //一个字的关键字查单字的倒排表，否则查所有相邻两个字的倒排表，从最短的开始求交集
+        List<byte[]> lists = new ArrayList<>();
+        for (String gram : Doc.grams(query, query.length() == 1 ? 1 : 2)) {
+            byte[] posting = postings.get(gram);
+            if (posting == null) {
+                return Collections.emptyList();
+            }
+            lists.add(posting);
+        }
+        lists.sort(Comparator.comparingInt(p -> p.length));
+        long[] candidates = decode(lists.get(0));
+        int count = candidates.length;
+        for (int i = 1; i < lists.size() && count > 0; i++) {
+            count = intersect(candidates, count, lists.get(i));
+        }
+        //gram都命中不代表关键字连续出现，用原文确认并打分
+        List<long[]> hits = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Doc doc = docs.get(candidates[i]);
+            long score = doc == null ? -1 : doc.score(query);
+            if (score >= 0) {
+                hits.add(new long[]{score, candidates[i]});
+            }
+        }
+        hits.sort((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        return hits;
+    }
+
+    /**
+     * 求candidates前count个和压缩倒排表的交集，结果写回candidates
+     * @return 交集的大小
+     */
+    static int intersect(long[] candidates, int count, byte[] posting) {
+        int n = 0;
+        int i = 0;
+        int pos = 0;
+        long id = 0;
+        while (i < count && pos < posting.length) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = posting[pos++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            id += delta;
+            while (i < count && candidates[i] < id) {
+                i++;
+            }
+            if (i < count && candidates[i] == id) {
+                candidates[n++] = id;
+                i++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * 升序的id转成差值，每个差值按7位一组变长编码，最高位表示后面还有
+     */
+    static byte[] encode(long[] ids, int size) {
+        byte[] buf = new byte[size * 10];
+        int pos = 0;
+        long last = 0;
+        for (int i = 0; i < size; i++) {
+            long delta = ids[i] - last;
+            last = ids[i];
+            while ((delta & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            buf[pos++] = (byte) delta;
+        }
+        return Arrays.copyOf(buf, pos);
+    }
+
+    static long[] decode(byte[] posting) {
+        long[] ids = new long[posting.length];
+        int n = 0;
+        int pos = 0;
+        long id = 0;
+        while (pos < posting.length) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = posting[pos++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            id += delta;
+            ids[n++] = id;
+        }
+        return Arrays.copyOf(ids, n);
+    }
+
+    private static class Doc {
+        //分数越小越靠前，命中的字段决定高位，命中位置决定低位
+        private static final long FIELD_WEIGHT = 1L << 32;
+
+        private final String name;
+        private final String area;
+        private final String address;
+
+        Doc(Shop shop) {
+            this.name = normalize(shop.getName());
+            this.area = normalize(shop.getArea());
+            this.address = normalize(shop.getAddress());
+        }
+
+        Set<String> grams() {
+            Set<String> grams = new LinkedHashSet<>();
+            for (String text : new String[]{name, area, address}) {
+                grams.addAll(grams(text, 1));
+                grams.addAll(grams(text, 2));
+            }
+            return grams;
+        }
+
+        /**
+         * @return 不包含关键字时返回-1
+         */
+        long score(String query) {
+            String[] fields = {name, area, address};
+            for (int f = 0; f < fields.length; f++) {
+                int i = fields[f].indexOf(query);
+                if (i >= 0) {
+                    return f * FIELD_WEIGHT + i;
+                }
+            }
+            return -1;
+        }
+
+        static Set<String> grams(String text, int n) {
+            Set<String> grams = new LinkedHashSet<>();
+            for (int i = 0; i + n <= text.length(); i++) {
+                grams.add(text.substring(i, i + n));
+            }
+            return grams;
+        }
+
+        static String normalize(String text) {
+            return StrUtil.isBlank(text) ? "" : StrUtil.cleanBlank(text).toLowerCase();
+        }
+    }
+}
@@ -42,7 +42,8 @@ public class SimpleRedisLock implements ILock{
         //使用lua脚本进行执行释放锁的操作
         stringRedisTemplate.execute(UNLOCK_SCRIPT,
                 Collections.singletonList(lockKey),
-                threadName
+                threadName,
+                RedisConstants.LOCK_RELEASED_CHANNEL
         );
     }
 //    @Override
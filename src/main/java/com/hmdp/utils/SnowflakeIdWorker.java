@@ -0,0 +1,175 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+import static com.hmdp.utils.RedisConstants.ID_WORKER_TTL;
+
+/**
+ * 本地雪花算法发号，不依赖每次访问Redis。
+ * id结构和RedisIdWorker一致：高位是相对BEGIN_TIMESTAMP的秒数左移32位，
+ * 低32位 = 1位标记(固定为1) + 9位workerId + 22位序号，标记位保证和Redis自增序号不会重复。
+ * workerId启动时从Redis租用，后台定时续期；租约丢失后重新申请。
+ * 时钟回拨时继续沿用上一次的秒数，序号用完再借用下一秒，保证id单调递增不重复。
+ */
+@Slf4j
+@Component
+public class SnowflakeIdWorker {
+    private static final long BEGIN_TIMESTAMP = 1704067200L;
+    private static final int COUNT_BITS = 32;
+    private static final int SEQUENCE_BITS = 22;
+    private static final int WORKER_BITS = 9;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long SNOWFLAKE_FLAG = 1L << (SEQUENCE_BITS + WORKER_BITS);
+    private static final long RENEW_INTERVAL_SECONDS = ID_WORKER_TTL / 3;
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("script/renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("script/unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    @Value("${hmdp.id.mode:counter}")
+    private String mode;
+
+    private final String token = UUID.randomUUID().toString();
+    private final ScheduledExecutorService renewExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "id-worker-renew");
+        thread.setDaemon(true);
+        return thread;
+    });
+    //-1表示当前没有有效的workerId
+    private volatile long workerId = -1;
+    //租约到期时间，Redis长时间不可用导致无法续期时停止发号，避免和接手这个workerId的节点重复
+    private volatile long leaseDeadline;
+    private long lastSecond = -1;
+    private long sequence;
+
+    @PostConstruct
+    public void init() {
+        if (!"snowflake".equals(mode)) {
+            return;
+        }
+        acquireWorkerId();
+        renewExecutor.scheduleWithFixedDelay(this::renew, RENEW_INTERVAL_SECONDS, RENEW_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        renewExecutor.shutdownNow();
+        long id = workerId;
+        if (id >= 0) {
+            stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(ID_WORKER_KEY + id), token);
+        }
+    }
+
+    public synchronized long nextId() {
+        long id = workerId;
+        if (id < 0 || System.currentTimeMillis() > leaseDeadline) {
+            throw new IllegalStateException("没有可用的workerId");
+        }
+        long nowSecond = currentSecond();
+        if (nowSecond < lastSecond) {
+            //时钟回拨，沿用上一次的秒数
+            if (lastSecond - nowSecond > 1) {
+                log.warn("检测到时钟回拨{}秒，继续使用上一次的时间戳", lastSecond - nowSecond);
+            }
+            nowSecond = lastSecond;
+        }
+        if (nowSecond == lastSecond) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                //这一秒的序号用完了，借用下一秒
+                nowSecond = lastSecond + 1;
+            }
+        } else {
+            sequence = 0;
+        }
+        lastSecond = nowSecond;
+        return (nowSecond - BEGIN_TIMESTAMP) << COUNT_BITS | SNOWFLAKE_FLAG | id << SEQUENCE_BITS | sequence;
+    }
+
+    private void acquireWorkerId() {
+        //从随机位置开始找，减少多个节点同时启动时的冲突
+        long start = ThreadLocalRandom.current().nextLong(MAX_WORKER_ID + 1);
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) & MAX_WORKER_ID;
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + id, token, ID_WORKER_TTL, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                restoreLastSecond(id);
+                leaseDeadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ID_WORKER_TTL);
+                workerId = id;
+                log.info("租用workerId {}", id);
+                return;
+            }
+        }
+        throw new IllegalStateException("workerId已经全部被占用");
+    }
+
+    //上一个使用这个workerId的节点可能时钟比我们快，而且最后一次续期之后还能再发一个租期的号，
+    //从它最后记录的时间戳加上整个租期之后开始发号
+    private synchronized void restoreLastSecond(long id) {
+        String last = stringRedisTemplate.opsForValue().get(ID_WORKER_KEY + id + ":last");
+        if (last != null) {
+            lastSecond = Math.max(lastSecond, Long.parseLong(last) + ID_WORKER_TTL + 1);
+            sequence = SEQUENCE_MASK;
+        }
+    }
+
+    private void renew() {
+        long id = workerId;
+        try {
+            if (id < 0) {
+                acquireWorkerId();
+                return;
+            }
+            long renewAt = System.currentTimeMillis();
+            Long r = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(ID_WORKER_KEY + id),
+                    token, String.valueOf(ID_WORKER_TTL));
+            if (r != null && r == 1) {
+                leaseDeadline = renewAt + TimeUnit.SECONDS.toMillis(ID_WORKER_TTL);
+                long last;
+                synchronized (this) {
+                    last = Math.max(lastSecond, currentSecond());
+                }
+                stringRedisTemplate.opsForValue().set(ID_WORKER_KEY + id + ":last", String.valueOf(last));
+                return;
+            }
+            log.warn("workerId {} 的租约已经失效，重新申请", id);
+            workerId = -1;
+            acquireWorkerId();
+        } catch (Exception e) {
+            log.error("workerId续期失败", e);
+        }
+    }
+
+    private static long currentSecond() {
+        return LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
+    }
+}
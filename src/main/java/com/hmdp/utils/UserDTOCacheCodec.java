@@ -0,0 +1,32 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import org.springframework.stereotype.Component;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+@Component
+public class UserDTOCacheCodec extends BinaryCacheCodec<UserDTO> {
+    @Override
+    public Class<UserDTO> type() {
+        return UserDTO.class;
+    }
+
+    @Override
+    protected void write(UserDTO user, DataOutputStream out) throws IOException {
+        writeLong(out, user.getId());
+        writeString(out, user.getNickName());
+        writeString(out, user.getIcon());
+    }
+
+    @Override
+    protected UserDTO read(DataInputStream in) throws IOException {
+        UserDTO user = new UserDTO();
+        user.setId(readLong(in));
+        user.setNickName(readString(in));
+        user.setIcon(readString(in));
+        return user;
+    }
+}
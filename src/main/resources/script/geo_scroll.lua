@@ -0,0 +1,33 @@
+-- 按距离滚动查询附近的店铺，从游标(距离, id)之后开始，只把这一页返回给客户端
+-- KEYS[1] 店铺GEO key
+-- ARGV[1] 经度  ARGV[2] 纬度  ARGV[3] 半径，米  ARGV[4] 上一页最后一个店铺的距离，第一页传-1
+-- ARGV[5] 上一页最后一个店铺的id  ARGV[6] 每页数量
+-- 返回值 {id, 距离, id, 距离, ...}，按(距离, id)升序
+local results = redis.call('georadius', KEYS[1], ARGV[1], ARGV[2], ARGV[3], 'm', 'WITHDIST', 'ASC')
+local lastDistance = tonumber(ARGV[4])
+local lastId = tonumber(ARGV[5])
+local size = tonumber(ARGV[6])
+local page = {}
+for _, r in ipairs(results) do
+    local id = tonumber(r[1])
+    local distance = tonumber(r[2])
+    if (distance > lastDistance or (distance == lastDistance and id > lastId)) then
+        -- 结果按距离升序，凑够一页后还要带上和最后一个距离相同的店铺，排序后再截断，保证相同距离按id排序
+        if (#page >= size and distance > page[#page][2]) then
+            break
+        end
+        table.insert(page, {id, distance, r[1], r[2]})
+    end
+end
+table.sort(page, function(a, b)
+    if (a[2] ~= b[2]) then
+        return a[2] < b[2]
+    end
+    return a[1] < b[1]
+end)
+local reply = {}
+for i = 1, math.min(size, #page) do
+    table.insert(reply, page[i][3])
+    table.insert(reply, page[i][4])
+end
+return reply
@@ -0,0 +1,8 @@
+-- 可重入锁加锁：锁是一个hash，field是持有者标识，value是重入次数
+-- KEYS[1] 锁的key  ARGV[1] 持有者标识  ARGV[2] 过期时间(毫秒)
+if (redis.call('exists', KEYS[1]) == 0 or redis.call('hexists', KEYS[1], ARGV[1]) == 1) then
+    redis.call('hincrby', KEYS[1], ARGV[1], 1)
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return 1
+end
+return 0
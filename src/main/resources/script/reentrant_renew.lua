@@ -0,0 +1,6 @@
+-- 看门狗续期：持有者还在才延长过期时间
+-- KEYS[1] 锁的key  ARGV[1] 持有者标识  ARGV[2] 过期时间(毫秒)
+if (redis.call('hexists', KEYS[1], ARGV[1]) == 1) then
+    return redis.call('pexpire', KEYS[1], ARGV[2])
+end
+return 0
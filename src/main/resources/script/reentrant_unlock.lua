@@ -0,0 +1,12 @@
+-- 可重入锁解锁：重入次数减到0才真正删除，并通知等待这把锁的节点
+-- KEYS[1] 锁的key  ARGV[1] 持有者标识  ARGV[2] 锁释放通知的频道
+-- 返回 -1 不是自己的锁  0 还有重入没有释放  1 已经释放
+if (redis.call('hexists', KEYS[1], ARGV[1]) == 0) then
+    return -1
+end
+if (redis.call('hincrby', KEYS[1], ARGV[1], -1) > 0) then
+    return 0
+end
+redis.call('del', KEYS[1])
+redis.call('publish', ARGV[2], KEYS[1])
+return 1
@@ -0,0 +1,6 @@
+-- 续期：只有持有者才能延长过期时间
+-- KEYS[1] key  ARGV[1] 持有者标识  ARGV[2] 过期时间(秒)
+if (redis.call('get', KEYS[1]) == ARGV[1]) then
+    return redis.call('expire', KEYS[1], ARGV[2])
+end
+return 0
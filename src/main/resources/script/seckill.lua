@@ -0,0 +1,24 @@
+-- 秒杀资格判断：库存扣减和一人一单在同一个脚本里原子完成
+-- KEYS[1] 库存key  KEYS[2] 已购用户集合key  KEYS[3] 订单消息队列（可选，传了就异步下单）
+-- ARGV[1] 用户id  ARGV[2] 优惠券id  ARGV[3] 订单id
+-- 返回值 0：抢购成功  1：库存不足  2：重复下单  3：库存尚未加载到Redis
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local userId = ARGV[1]
+
+local stock = redis.call('get', stockKey)
+if (stock == false) then
+    return 3
+end
+if (tonumber(stock) <= 0) then
+    return 1
+end
+if (redis.call('sismember', orderKey, userId) == 1) then
+    return 2
+end
+redis.call('incrby', stockKey, -1)
+redis.call('sadd', orderKey, userId)
+if (#KEYS >= 3) then
+    redis.call('xadd', KEYS[3], '*', 'userId', userId, 'voucherId', ARGV[2], 'id', ARGV[3])
+end
+return 0
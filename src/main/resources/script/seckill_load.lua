@@ -0,0 +1,10 @@
+-- 决定优惠券库存在Redis里的布局：分片数只会写入一次，之后所有节点都按它加载和扣减
+-- KEYS[1] 分片数key
+-- ARGV[1] 当前节点想要使用的分片数
+-- 返回值 实际生效的分片数
+local shards = redis.call('get', KEYS[1])
+if (shards == false) then
+    redis.call('set', KEYS[1], ARGV[1])
+    return tonumber(ARGV[1])
+end
+return tonumber(shards)
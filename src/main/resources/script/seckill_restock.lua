@@ -0,0 +1,9 @@
+-- 补货：库存已经加载到Redis时增加库存，还没加载的key不创建，留给加载时从数据库读取
+-- KEYS[1] 库存key或分片库存key
+-- ARGV[1] 增加的数量
+-- 返回值 1：已增加  0：库存尚未加载到Redis
+if (redis.call('exists', KEYS[1]) == 0) then
+    return 0
+end
+redis.call('incrby', KEYS[1], ARGV[1])
+return 1
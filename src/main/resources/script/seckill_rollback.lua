@@ -0,0 +1,8 @@
+-- 订单落库失败时回滚秒杀资格：归还库存并移除已购标记
+-- KEYS[1] 库存key  KEYS[2] 已购用户集合key
+-- ARGV[1] 用户id
+if (redis.call('srem', KEYS[2], ARGV[1]) == 1) then
+    redis.call('incrby', KEYS[1], 1)
+    return 1
+end
+return 0
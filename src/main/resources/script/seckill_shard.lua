@@ -0,0 +1,20 @@
+-- 分片库存的秒杀资格判断，只操作用户所属的分片
+-- KEYS[1] 分片库存key  KEYS[2] 分片已购用户集合key  KEYS[3] 订单消息队列（可选，传了就异步下单）
+-- ARGV[1] 用户id  ARGV[2] 优惠券id  ARGV[3] 订单id
+-- 返回值 0：抢购成功  1：本分片没有库存，已预占购买资格，需要去其他分片扣库存  2：重复下单  3：库存尚未加载到Redis
+local stock = redis.call('get', KEYS[1])
+if (stock == false) then
+    return 3
+end
+if (redis.call('sismember', KEYS[2], ARGV[1]) == 1) then
+    return 2
+end
+redis.call('sadd', KEYS[2], ARGV[1])
+if (tonumber(stock) <= 0) then
+    return 1
+end
+redis.call('incrby', KEYS[1], -1)
+if (#KEYS >= 3) then
+    redis.call('xadd', KEYS[3], '*', 'userId', ARGV[1], 'voucherId', ARGV[2], 'id', ARGV[3])
+end
+return 0
@@ -0,0 +1,16 @@
+-- 从兄弟分片扣减一个库存，购买资格已经在用户自己的分片预占
+-- KEYS[1] 分片库存key  KEYS[2] 订单消息队列（可选，传了就异步下单）
+-- ARGV[1] 用户id  ARGV[2] 优惠券id  ARGV[3] 订单id
+-- 返回值 1：扣减成功  0：该分片没有库存  3：该分片尚未加载到Redis
+local stock = redis.call('get', KEYS[1])
+if (stock == false) then
+    return 3
+end
+if (tonumber(stock) <= 0) then
+    return 0
+end
+redis.call('incrby', KEYS[1], -1)
+if (#KEYS >= 2) then
+    redis.call('xadd', KEYS[2], '*', 'userId', ARGV[1], 'voucherId', ARGV[2], 'id', ARGV[3])
+end
+return 1
@@ -0,0 +1,17 @@
+-- 认领一个店铺的增量准备写回数据库：把增量合并到写回中的hash里并清空增量，记录认领者和认领时间。
+-- 上一次写回没有完成（节点挂了）时写回中的hash还在，超时后会被合并进来重新写回。
+-- KEYS[1] 增量hash  KEYS[2] 写回中的hash
+-- ARGV[1] 认领者标识  ARGV[2] 当前时间，毫秒  ARGV[3] 认领超时时间，毫秒
+-- 其他节点正在写回时返回nil，否则返回{销量增量, 评论增量}
+local owner = redis.call('hget', KEYS[2], 'owner')
+local claimedAt = tonumber(redis.call('hget', KEYS[2], 'claimedAt'))
+if (owner and owner ~= ARGV[1] and claimedAt and tonumber(ARGV[2]) - claimedAt < tonumber(ARGV[3])) then
+    return nil
+end
+local values = redis.call('hmget', KEYS[1], 'sold', 'comments')
+redis.call('hincrby', KEYS[2], 'sold', tonumber(values[1]) or 0)
+redis.call('hincrby', KEYS[2], 'comments', tonumber(values[2]) or 0)
+redis.call('del', KEYS[1])
+redis.call('hset', KEYS[2], 'owner', ARGV[1], 'claimedAt', ARGV[2])
+local claimed = redis.call('hmget', KEYS[2], 'sold', 'comments')
+return {tonumber(claimed[1]), tonumber(claimed[2])}
@@ -0,0 +1,8 @@
+-- 累加店铺计数的增量，已经有实时总数时总数一起累加
+-- KEYS[1] 增量hash  KEYS[2] 实时总数hash
+-- ARGV[1] 字段  ARGV[2] 增量
+redis.call('hincrby', KEYS[1], ARGV[1], ARGV[2])
+if (redis.call('exists', KEYS[2]) == 1) then
+    redis.call('hincrby', KEYS[2], ARGV[1], ARGV[2])
+end
+return 1
@@ -0,0 +1,10 @@
+-- 查询店铺计数：有实时总数时返回{1, 销量, 评论数}，否则返回{0, 销量增量, 评论增量}，增量包括正在写回的部分
+-- KEYS[1] 增量hash  KEYS[2] 写回中的hash  KEYS[3] 实时总数hash
+local total = redis.call('hmget', KEYS[3], 'sold', 'comments')
+if (total[1]) then
+    return {1, tonumber(total[1]), tonumber(total[2]) or 0}
+end
+local pending = redis.call('hmget', KEYS[1], 'sold', 'comments')
+local flushing = redis.call('hmget', KEYS[2], 'sold', 'comments')
+return {0, (tonumber(pending[1]) or 0) + (tonumber(flushing[1]) or 0),
+        (tonumber(pending[2]) or 0) + (tonumber(flushing[2]) or 0)}
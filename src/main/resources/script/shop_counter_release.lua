@@ -0,0 +1,15 @@
+-- 增量已经写回数据库，删除写回中的hash，并用数据库里的值加上认领之后的新增量刷新实时总数
+-- KEYS[1] 增量hash  KEYS[2] 写回中的hash  KEYS[3] 实时总数hash
+-- ARGV[1] 认领者标识  ARGV[2] 数据库销量  ARGV[3] 数据库评论数，-1表示不刷新实时总数  ARGV[4] 实时总数的过期时间，秒
+if (redis.call('hget', KEYS[2], 'owner') ~= ARGV[1]) then
+    -- 认领超时被其他节点接手了
+    return 0
+end
+redis.call('del', KEYS[2])
+if (tonumber(ARGV[3]) >= 0) then
+    local values = redis.call('hmget', KEYS[1], 'sold', 'comments')
+    redis.call('hset', KEYS[3], 'sold', tonumber(ARGV[2]) + (tonumber(values[1]) or 0),
+            'comments', tonumber(ARGV[3]) + (tonumber(values[2]) or 0))
+    redis.call('expire', KEYS[3], ARGV[4])
+end
+return 1
@@ -0,0 +1,6 @@
+-- 确认消息并从队列里删除，已经落库的订单不再占用Redis内存
+-- KEYS[1] 队列key
+-- ARGV[1] 消费者组  ARGV[2...] 消息id
+local ids = {unpack(ARGV, 2)}
+redis.call('xack', KEYS[1], ARGV[1], unpack(ids))
+return redis.call('xdel', KEYS[1], unpack(ids))
@@ -0,0 +1,24 @@
+-- 把其他消费者长时间未确认的消息转移给当前消费者，用于节点宕机后的订单恢复
+-- KEYS[1] 队列key
+-- ARGV[1] 消费者组  ARGV[2] 当前消费者  ARGV[3] 每页检查的消息数  ARGV[4] 最小空闲时间(毫秒)  ARGV[5] 本页起始消息id
+-- 返回 {转移的消息数, 下一页起始消息id}，扫描完时下一页起始id为空字符串
+local pending = redis.call('xpending', KEYS[1], ARGV[1], ARGV[5], '+', ARGV[3])
+local ids = {}
+for _, entry in ipairs(pending) do
+    if (entry[2] ~= ARGV[2] and tonumber(entry[3]) >= tonumber(ARGV[4])) then
+        table.insert(ids, entry[1])
+    end
+end
+local nextStart = ''
+if (#pending == tonumber(ARGV[3])) then
+    -- 最后一条消息id的序号加一作为下一页的起点，低版本的XPENDING不支持开区间
+    local last = pending[#pending][1]
+    local sep = string.find(last, '-', 1, true)
+    nextStart = string.sub(last, 1, sep - 1) .. '-' .. string.format('%d', tonumber(string.sub(last, sep + 1)) + 1)
+end
+local count = #ids
+if (count > 0) then
+    table.insert(ids, 'JUSTID')
+    redis.call('xclaim', KEYS[1], ARGV[1], ARGV[2], ARGV[4], unpack(ids))
+end
+return {count, nextStart}
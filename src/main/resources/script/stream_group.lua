@@ -0,0 +1,7 @@
+-- 创建消费者组，队列不存在时一起创建，组已存在时忽略
+-- KEYS[1] 队列key  ARGV[1] 消费者组
+local ok = redis.pcall('xgroup', 'create', KEYS[1], ARGV[1], '0', 'MKSTREAM')
+if (type(ok) == 'table' and ok.err) then
+    return 0
+end
+return 1
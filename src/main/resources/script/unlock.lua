@@ -1,4 +1,9 @@
 if (redis.call('get', KEYS[1]) == ARGV[1]) then
-    return redis.call('del', KEYS[1])
+    local result = redis.call('del', KEYS[1])
+    -- 传了频道就通知等待这把锁的节点
+    if (ARGV[2]) then
+        redis.call('publish', ARGV[2], KEYS[1])
+    end
+    return result
 end
-return 0
\ No newline at end of file
+return 0
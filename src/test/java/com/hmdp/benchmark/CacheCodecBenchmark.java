@@ -0,0 +1,123 @@
+package com.hmdp.benchmark;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.ShopCacheCodec;
+import com.hmdp.utils.UserDTOCacheCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存值JSON编码和二进制编码的对比。
+ * 运行：mvn test-compile 之后执行main方法，先打印每种类型两种编码的字节数，再跑JMH。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CacheCodecBenchmark {
+
+    @Param({"shop", "user"})
+    private String entry;
+
+    private Object value;
+    private Class<?> type;
+    private CacheCodec<Object> codec;
+    private String json;
+    private byte[] binary;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        switch (entry) {
+            case "shop":
+                value = shop();
+                codec = (CacheCodec<Object>) (CacheCodec<?>) new ShopCacheCodec();
+                break;
+            default:
+                value = user();
+                codec = (CacheCodec<Object>) (CacheCodec<?>) new UserDTOCacheCodec();
+        }
+        type = codec.type();
+        json = JSONUtil.toJsonStr(value);
+        binary = codec.encode(value);
+    }
+
+    @Benchmark
+    public byte[] jsonEncode() {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Object jsonDecode() {
+        return JSONUtil.toBean(json, type);
+    }
+
+    @Benchmark
+    public byte[] binaryEncode() {
+        return codec.encode(value);
+    }
+
+    @Benchmark
+    public Object binaryDecode() {
+        return codec.decode(binary, 0, binary.length);
+    }
+
+    private static Shop shop() {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+
+    private static UserDTO user() {
+        UserDTO user = new UserDTO();
+        user.setId(1010L);
+        user.setNickName("可可今天不吃肉");
+        user.setIcon("/imgs/icons/kkjtbcr.jpg");
+        return user;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (String entry : new String[]{"shop", "user"}) {
+            CacheCodecBenchmark benchmark = new CacheCodecBenchmark();
+            benchmark.entry = entry;
+            benchmark.setup();
+            System.out.printf("%-8s json=%d bytes, binary=%d bytes%n", entry,
+                    benchmark.json.getBytes(StandardCharsets.UTF_8).length, benchmark.binary.length + 1);
+        }
+        new Runner(new OptionsBuilder().include(CacheCodecBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,81 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * 二进制编解码的往返测试，字段全有和全为空两种情况
+ */
+class CacheCodecTest {
+
+    @Test
+    void shopRoundTrip() {
+        Shop shop = new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/1.jpg,https://qcloud.dpfile.com/pc/2.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39, 123_000_000))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+        assertEquals(shop, roundTrip(new ShopCacheCodec(), shop));
+    }
+
+    @Test
+    void shopWithNullFields() {
+        Shop shop = new Shop().setId(2L);
+        assertEquals(shop, roundTrip(new ShopCacheCodec(), shop));
+    }
+
+    @Test
+    void shopDistanceIsNotCached() {
+        Shop shop = new Shop().setId(3L).setDistance(120.5);
+        assertNull(roundTrip(new ShopCacheCodec(), shop).getDistance());
+    }
+
+    @Test
+    void userRoundTrip() {
+        UserDTO user = new UserDTO();
+        user.setId(1010L);
+        user.setNickName("可可今天不吃肉");
+        user.setIcon("/imgs/icons/kkjtbcr.jpg");
+        assertEquals(user, roundTrip(new UserDTOCacheCodec(), user));
+    }
+
+    @Test
+    void userWithNullFields() {
+        UserDTO user = new UserDTO();
+        assertEquals(user, roundTrip(new UserDTOCacheCodec(), user));
+    }
+
+    @Test
+    void decodeWithOffset() {
+        UserDTO user = new UserDTO();
+        user.setId(7L);
+        user.setNickName("user_7");
+        byte[] encoded = new UserDTOCacheCodec().encode(user);
+        //CacheClient写入Redis时前面有一个字节的格式标记
+        byte[] raw = new byte[encoded.length + 1];
+        System.arraycopy(encoded, 0, raw, 1, encoded.length);
+        assertEquals(user, new UserDTOCacheCodec().decode(raw, 1, encoded.length));
+    }
+
+    private static <T> T roundTrip(CacheCodec<T> codec, T value) {
+        byte[] data = codec.encode(value);
+        return codec.decode(data, 0, data.length);
+    }
+}
@@ -0,0 +1,150 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 网格查询的结果和逐个计算距离的暴力结果对比
+ */
+class ShopGeoIndexTest {
+    private static final double X = 120.149192;
+    private static final double Y = 30.316078;
+
+    private final List<Shop> shops = new ArrayList<>();
+    private ShopGeoIndex index;
+
+    @BeforeEach
+    void setUp() {
+        Random random = new Random(42);
+        for (long id = 1; id <= 2000; id++) {
+            shops.add(new Shop()
+                    .setId(id)
+                    .setTypeId(id % 3 + 1)
+                    .setX(X + (random.nextDouble() - 0.5) * 0.2)
+                    .setY(Y + (random.nextDouble() - 0.5) * 0.2));
+        }
+        index = new ShopGeoIndex();
+        ReflectionTestUtils.setField(index, "cell", 0.01);
+        ReflectionTestUtils.setField(index, "pageSize", 500);
+        index.loadNow((lastId, size) -> shops.stream()
+                .filter(s -> s.getId() > lastId)
+                .limit(size)
+                .collect(Collectors.toList()));
+    }
+
+    @Test
+    void nearestMatchesBruteForce() {
+        for (double radius : new double[]{300, 2000, 5000, 50000}) {
+            for (int limit : new int[]{1, 10, 100}) {
+                assertNearest(1L, X, Y, radius, limit);
+                assertNearest(2L, X + 0.03, Y - 0.02, radius, limit);
+            }
+        }
+    }
+
+    @Test
+    void nearestOutsideAllShops() {
+        assertEquals(0, index.nearest(1L, X + 5, Y + 5, 5000, 10).size);
+        assertEquals(0, index.nearest(99L, X, Y, 5000, 10).size);
+    }
+
+    @Test
+    void updateMovesShopBetweenTypesAndCells() {
+        Shop moved = new Shop().setId(1L).setTypeId(3L).setX(X + 0.5).setY(Y + 0.5);
+        index.putLocal(moved);
+        shops.set(0, moved);
+        assertNearest(2L, X, Y, 50000, 2000);
+        ShopGeoIndex.Nearby nearby = index.nearest(3L, X + 0.5, Y + 0.5, 100, 1);
+        assertEquals(1, nearby.size);
+        assertEquals(1L, nearby.ids[0]);
+        assertEquals(0, nearby.distances[0], 1e-6);
+    }
+
+    @Test
+    void scrollWithCursorMatchesBruteForce() {
+        //两个店铺和查询点距离相同，按id排序
+        Shop twin = new Shop().setId(3001L).setTypeId(1L).setX(X).setY(Y + 0.001);
+        Shop twin2 = new Shop().setId(3000L).setTypeId(1L).setX(X).setY(Y - 0.001);
+        index.putLocal(twin);
+        index.putLocal(twin2);
+        shops.add(twin);
+        shops.add(twin2);
+        List<Long> expected = shops.stream()
+                .filter(s -> s.getTypeId() == 1L)
+                .filter(s -> ShopGeoIndex.distance(X, Y, s.getX(), s.getY()) <= 3000)
+                .sorted(Comparator.<Shop>comparingDouble(s -> ShopGeoIndex.distance(X, Y, s.getX(), s.getY()))
+                        .thenComparing(Shop::getId))
+                .map(Shop::getId)
+                .collect(Collectors.toList());
+        List<Long> scrolled = new ArrayList<>();
+        double lastDistance = -1;
+        long lastId = 0;
+        while (true) {
+            ShopGeoIndex.Nearby page = index.nearest(1L, X, Y, 3000, lastDistance, lastId, 7);
+            if (page.size == 0) {
+                break;
+            }
+            for (int i = 0; i < page.size; i++) {
+                scrolled.add(page.ids[i]);
+            }
+            lastDistance = page.distances[page.size - 1];
+            lastId = page.ids[page.size - 1];
+        }
+        assertEquals(expected, scrolled);
+    }
+
+    @Test
+    void manyUpdatesKeepGridConsistent() {
+        Random random = new Random(7);
+        for (int n = 0; n < 500; n++) {
+            int i = random.nextInt(shops.size());
+            Shop moved = new Shop()
+                    .setId(shops.get(i).getId())
+                    .setTypeId((long) random.nextInt(3) + 1)
+                    //有时移到很远的空网格，有时原地不动
+                    .setX(random.nextInt(10) == 0 ? X + 1 : X + (random.nextDouble() - 0.5) * 0.2)
+                    .setY(Y + (random.nextDouble() - 0.5) * 0.2);
+            index.putLocal(moved);
+            shops.set(i, moved);
+        }
+        Shop added = new Shop().setId(5000L).setTypeId(2L).setX(X + 0.001).setY(Y);
+        index.putLocal(added);
+        shops.add(added);
+        for (long typeId = 1; typeId <= 3; typeId++) {
+            assertNearest(typeId, X, Y, 50000, 3000);
+            assertNearest(typeId, X + 1, Y, 20000, 50);
+        }
+    }
+
+    private void assertNearest(Long typeId, double x, double y, double radius, int limit) {
+        List<double[]> expected = shops.stream()
+                .filter(s -> s.getTypeId().equals(typeId))
+                .map(s -> new double[]{s.getId(), ShopGeoIndex.distance(x, y, s.getX(), s.getY())})
+                .filter(e -> e[1] <= radius)
+                .sorted(Comparator.comparingDouble(e -> e[1]))
+                .limit(limit)
+                .collect(Collectors.toList());
+        ShopGeoIndex.Nearby nearby = index.nearest(typeId, x, y, radius, limit);
+        assertEquals(expected.size(), nearby.size);
+        long[] ids = new long[expected.size()];
+        double[] distances = new double[expected.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = (long) expected.get(i)[0];
+            distances[i] = expected.get(i)[1];
+        }
+        assertArrayEquals(ids, Arrays.copyOf(nearby.ids, nearby.size));
+        assertArrayEquals(distances, Arrays.copyOf(nearby.distances, nearby.size), 1e-6);
+    }
+}
@@ -0,0 +1,124 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShopNameIndexTest {
+
+    private ShopNameIndex index;
+
+    @BeforeEach
+    void setUp() {
+        List<Shop> shops = Arrays.asList(
+                shop(1L, "103茶餐厅", "大关", "金华路锦昌文华苑29号"),
+                shop(2L, "蔡馬洪涛烤肉·老北京铜锅涮羊肉", "拱宸桥/上塘", "上塘路1035号"),
+                shop(3L, "新白鹿餐厅(运河上街店)", "运河上街", "台州路2号运河上街购物中心F5"),
+                shop(4L, "餐厅茶餐", "茶餐厅对面", "余杭塘路"),
+                shop(5L, "Mamala(杭州远洋乐堤港店)", "拱宸桥/上塘", "丽水路66号远洋乐堤港商城2期"));
+        index = new ShopNameIndex();
+        ReflectionTestUtils.setField(index, "pageSize", 2);
+        index.loadNow((lastId, size) -> shops.stream()
+                .filter(s -> s.getId() > lastId)
+                .limit(size)
+                .collect(Collectors.toList()));
+    }
+
+    @Test
+    void postingRoundTrip() {
+        long[] ids = {1, 2, 127, 128, 300, 16384, 1L << 40, Long.MAX_VALUE / 2};
+        byte[] posting = ShopNameIndex.encode(ids, ids.length);
+        assertArrayEquals(ids, ShopNameIndex.decode(posting));
+        //相邻id的差值只占一个字节
+        assertEquals(3, ShopNameIndex.encode(new long[]{1, 2, 3}, 3).length);
+    }
+
+    @Test
+    void encodeOnlyPrefix() {
+        long[] ids = {5, 9, 200, 0};
+        assertArrayEquals(new long[]{5, 9, 200}, ShopNameIndex.decode(ShopNameIndex.encode(ids, 3)));
+    }
+
+    @Test
+    void intersectWithPosting() {
+        long[] candidates = {1, 3, 5, 130, 1000, 70000};
+        byte[] posting = ShopNameIndex.encode(new long[]{2, 3, 130, 999, 70000, 80000}, 6);
+        int n = ShopNameIndex.intersect(candidates, candidates.length, posting);
+        assertArrayEquals(new long[]{3, 130, 70000}, Arrays.copyOf(candidates, n));
+    }
+
+    @Test
+    void intersectEmpty() {
+        long[] candidates = {1, 2};
+        assertEquals(0, ShopNameIndex.intersect(candidates, 2, ShopNameIndex.encode(new long[]{3, 4}, 2)));
+    }
+
+    @Test
+    void searchRanksNameBeforeAreaAndAddress() {
+        //4的名称里“茶餐”和“餐厅”都有，但不连续，只有商圈命中
+        assertEquals(Arrays.asList(1L, 4L), index.search("茶餐厅", 0, 10));
+        assertEquals(Arrays.asList(4L, 3L, 1L), index.search("餐厅", 0, 10));
+    }
+
+    @Test
+    void searchSingleCharAndCase() {
+        assertEquals(Collections.singletonList(5L), index.search("mama", 0, 10));
+        assertEquals(Collections.singletonList(5L), index.search(" MAMA la ", 0, 10));
+        //单字查单字的倒排表，4的“茶”位置更靠前
+        assertEquals(Arrays.asList(4L, 1L), index.search("茶", 0, 10));
+    }
+
+    @Test
+    void searchMissing() {
+        assertTrue(index.search("火锅", 0, 10).isEmpty());
+        assertTrue(index.search("  ", 0, 10).isEmpty());
+    }
+
+    @Test
+    void searchPaging() {
+        assertEquals(Collections.singletonList(3L), index.search("餐厅", 1, 1));
+        List<Long> ids = new ArrayList<>();
+        long lastScore = Long.MIN_VALUE;
+        long lastId = 0;
+        while (true) {
+            List<long[]> hits = index.searchAfter("餐厅", lastScore, lastId, 2);
+            if (hits.isEmpty()) {
+                break;
+            }
+            for (long[] hit : hits) {
+                ids.add(hit[1]);
+            }
+            long[] last = hits.get(hits.size() - 1);
+            lastScore = last[0];
+            lastId = last[1];
+        }
+        assertEquals(index.search("餐厅", 0, 10), ids);
+    }
+
+    @Test
+    void updateReplacesOldGrams() {
+        index.putLocal(shop(1L, "绿茶", "大关", "金华路"));
+        assertEquals(Collections.singletonList(4L), index.search("茶餐厅", 0, 10));
+        assertEquals(Arrays.asList(1L, 4L), index.search("茶", 0, 10));
+        assertTrue(index.search("103茶", 0, 10).isEmpty());
+        //2的地址里也有“103”
+        assertEquals(Collections.singletonList(2L), index.search("103", 0, 10));
+        index.putLocal(shop(6L, "103烧腊", null, null));
+        assertEquals(Arrays.asList(6L, 2L), index.search("103", 0, 10));
+    }
+
+    private static Shop shop(Long id, String name, String area, String address) {
+        return new Shop().setId(id).setName(name).setArea(area).setAddress(address);
+    }
+}